@@ -0,0 +1,163 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * The directory of a <tt>NachosFileSystem</tt>, kept in the file of inode 0
+ * as an open-addressed hash table. Each slot holds a name and an inode
+ * number. A name is looked for starting at the slot its hash picks, and then
+ * in the following slots, until a slot that was never used; so a lookup
+ * usually reads a single sector, however many files there are.
+ *
+ * <p>
+ * A removed entry leaves a tombstone, so that names placed after it can
+ * still be found. Must be used with the file system lock held.
+ */
+class Directory {
+    /**
+     * Allocate a directory kept in an inode.
+     *
+     * @param	inode		the inode of the directory file.
+     * @param	numSlots	the number of slots in the table.
+     */
+    Directory(Inode inode, int numSlots) {
+	this.inode = inode;
+	this.numSlots = numSlots;
+    }
+
+    /**
+     * Return true if a name can be stored in the directory.
+     */
+    static boolean checkName(String name) {
+	if (name.length() == 0 || name.length() > maxNameLength)
+	    return false;
+
+	for (int i=0; i<name.length(); i++) {
+	    char c = name.charAt(i);
+	    if (c == 0 || c >= 0x80)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Return the inode number of a file.
+     *
+     * @param	name	the name of the file.
+     * @return	the inode number, or -1 if there is no such file.
+     */
+    int find(String name) {
+	int slot = probe(name, false);
+	return (slot < 0) ? -1 : readSlot(slot);
+    }
+
+    /**
+     * Add a file to the directory.
+     *
+     * @param	name	the name of the file, which must not be in the
+     *			directory already.
+     * @param	number	the inode number of the file.
+     * @return	<tt>true</tt> if there was room.
+     */
+    boolean add(String name, int number) {
+	int slot = probe(name, true);
+	if (slot < 0)
+	    return false;
+
+	byte[] entry = new byte[entrySize];
+	for (int i=0; i<name.length(); i++)
+	    entry[i] = (byte) name.charAt(i);
+	Lib.bytesFromInt(entry, maxNameLength+1, number);
+
+	writeSlot(slot, entry);
+	return true;
+    }
+
+    /**
+     * Remove a file from the directory.
+     *
+     * @param	name	the name of the file.
+     * @return	the inode number of the file, or -1 if there is no such file.
+     */
+    int remove(String name) {
+	int slot = probe(name, false);
+	if (slot < 0)
+	    return -1;
+
+	int number = readSlot(slot);
+
+	byte[] entry = new byte[entrySize];
+	Lib.bytesFromInt(entry, maxNameLength+1, tombstone);
+	writeSlot(slot, entry);
+
+	return number;
+    }
+
+    /**
+     * Find the slot holding a name, or the slot a new entry for it should
+     * go in.
+     *
+     * @param	name	the name to look for.
+     * @param	free	<tt>true</tt> to return the first free slot rather
+     *			than the slot holding the name.
+     * @return	the slot, or -1 if there is none.
+     */
+    private int probe(String name, boolean free) {
+	int start = (name.hashCode() & 0x7FFFFFFF) % numSlots;
+
+	for (int i=0; i<numSlots; i++) {
+	    int slot = (start+i) % numSlots;
+	    int number = readSlot(slot);
+
+	    if (number == unused)
+		return free ? slot : -1;
+	    else if (number == tombstone && free)
+		return slot;
+	    else if (number != tombstone && !free &&
+		     name.equals(slotName))
+		return slot;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Read a slot, leaving its name in <tt>slotName</tt>.
+     *
+     * @return	the inode number in the slot.
+     */
+    private int readSlot(int slot) {
+	byte[] entry = new byte[entrySize];
+	inode.lock.acquire();
+	int amount = inode.read(slot*entrySize, entry, 0, entrySize);
+	inode.lock.release();
+	Lib.assertTrue(amount == entrySize);
+
+	slotName = Lib.bytesToString(entry, 0, maxNameLength+1);
+	return Lib.bytesToInt(entry, maxNameLength+1);
+    }
+
+    private void writeSlot(int slot, byte[] entry) {
+	inode.lock.acquire();
+	int amount = inode.write(slot*entrySize, entry, 0, entrySize);
+	inode.lock.release();
+	Lib.assertTrue(amount == entrySize);
+    }
+
+    /** The number of bytes in a slot. */
+    static final int entrySize = 32;
+    /** The longest name a file can have. */
+    static final int maxNameLength = entrySize-5;
+
+    /** The inode number of a slot that was never used. */
+    private static final int unused = 0;
+    /** The inode number of a slot whose entry was removed. */
+    private static final int tombstone = -1;
+
+    private Inode inode;
+    private int numSlots;
+    private String slotName;
+}
@@ -0,0 +1,160 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.BitSet;
+
+/**
+ * The free sector map of a <tt>NachosFileSystem</tt>: one bit per sector,
+ * set if the sector is in use. The map is kept in memory, and the sectors of
+ * it that changed are written back by <tt>flush()</tt>.
+ *
+ * <p>
+ * Sectors are handed out in extents, runs of consecutive sectors, so that a
+ * file can be read or written with few requests and few seeks.
+ */
+class FreeMap {
+    /**
+     * Allocate a free map of a disk in which every sector is free.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     * @param	firstSector	the first of the sectors holding the map.
+     * @param	sectorSize	the size of a sector.
+     */
+    FreeMap(int numSectors, int firstSector, int sectorSize) {
+	this.numSectors = numSectors;
+	this.firstSector = firstSector;
+	this.sectorSize = sectorSize;
+
+	map = new byte[numMapSectors(numSectors, sectorSize)*sectorSize];
+    }
+
+    /**
+     * Return the number of sectors a map of a disk takes.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     * @param	sectorSize	the size of a sector.
+     * @return	the number of sectors the map takes.
+     */
+    static int numMapSectors(int numSectors, int sectorSize) {
+	int bitsPerSector = sectorSize*8;
+	return (numSectors + bitsPerSector-1) / bitsPerSector;
+    }
+
+    /**
+     * Read the map from the disk.
+     */
+    void load(SynchDisk disk) {
+	disk.readSectors(firstSector, map.length/sectorSize, map, 0);
+	dirty.clear();
+    }
+
+    /**
+     * Write the sectors of the map that changed to the disk.
+     */
+    void flush(SynchDisk disk) {
+	for (int i=dirty.nextSetBit(0); i>=0; i=dirty.nextSetBit(i+1))
+	    disk.writeSectors(firstSector+i, 1, map, i*sectorSize);
+
+	dirty.clear();
+    }
+
+    /**
+     * Return true if a sector is in use.
+     */
+    boolean isUsed(int sector) {
+	return (map[sector/8] & (1 << (sector%8))) != 0;
+    }
+
+    /**
+     * Mark a run of sectors in use or free.
+     *
+     * @param	start	the first sector.
+     * @param	count	the number of sectors.
+     * @param	used	<tt>true</tt> to mark them in use.
+     */
+    void mark(int start, int count, boolean used) {
+	Lib.assertTrue(start >= 0 && count >= 0 && start+count <= numSectors);
+
+	for (int sector=start; sector<start+count; sector++) {
+	    Lib.assertTrue(isUsed(sector) != used);
+
+	    if (used)
+		map[sector/8] |= (1 << (sector%8));
+	    else
+		map[sector/8] &= ~(1 << (sector%8));
+
+	    dirty.set(sector/8 / sectorSize);
+	}
+    }
+
+    /**
+     * Return the number of free sectors starting at a sector, counting no
+     * further than <i>max</i>. Used to grow an extent in place.
+     */
+    int freeRun(int start, int max) {
+	int count = 0;
+	while (count < max && start+count < numSectors &&
+	       !isUsed(start+count))
+	    count++;
+
+	return count;
+    }
+
+    /**
+     * Find free sectors for an extent of up to <i>count</i> sectors. Takes
+     * the first run of <i>count</i> free sectors at or after <i>hint</i>,
+     * wrapping around to the start of the disk. If there is no run that long,
+     * takes the longest run there is. The sectors are not marked in use.
+     *
+     * @param	count	the number of sectors wanted.
+     * @param	hint	the sector to start looking at.
+     * @return	an array holding the first sector and the number of sectors
+     *		found, which is 0 if the disk is full.
+     */
+    int[] find(int count, int hint) {
+	int bestStart = 0, bestCount = 0;
+
+	hint = (hint >= 0 && hint < numSectors) ? hint : 0;
+
+	int sector = hint;
+	for (int visited=0; visited<numSectors; ) {
+	    int run = freeRun(sector, count);
+	    if (run > bestCount) {
+		bestStart = sector;
+		bestCount = run;
+		if (run == count)
+		    break;
+	    }
+
+	    int step = Math.max(run, 1);
+	    visited += step;
+	    sector = (sector+step) % numSectors;
+	}
+
+	return new int[] { bestStart, bestCount };
+    }
+
+    /**
+     * Return the number of free sectors.
+     */
+    int numFree() {
+	int free = 0;
+	for (int sector=0; sector<numSectors; sector++) {
+	    if (!isUsed(sector))
+		free++;
+	}
+
+	return free;
+    }
+
+    private int numSectors;
+    private int firstSector;
+    private int sectorSize;
+
+    private byte[] map;
+    /** The sectors of the map that differ from the disk. */
+    private BitSet dirty = new BitSet();
+}
@@ -0,0 +1,312 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.ArrayList;
+
+/**
+ * The header of a file in a <tt>NachosFileSystem</tt>: its length and the
+ * extents, runs of consecutive sectors, that hold its data. An inode takes
+ * <tt>size</tt> bytes of the inode table, which has room for
+ * <tt>directExtents</tt> extents. A file with more extents keeps the rest in
+ * an indirect sector.
+ *
+ * <p>
+ * When a file grows, its last extent is extended in place if the sectors
+ * after it are free. Otherwise a new extent is allocated as close after it
+ * as possible, with room to spare, so files tend to stay in few pieces. The
+ * sectors past the end of a file are freed with it.
+ *
+ * <p>
+ * The data of a file is read and written with the inode's lock held; the
+ * file system's lock is taken on top of it to allocate or free sectors.
+ */
+class Inode {
+    /**
+     * Allocate the in-memory copy of an inode.
+     *
+     * @param	fileSystem	the file system the inode belongs to.
+     * @param	number		the inode number.
+     */
+    Inode(NachosFileSystem fileSystem, int number) {
+	this.fileSystem = fileSystem;
+	this.number = number;
+    }
+
+    /**
+     * Return the largest number of extents a file can have.
+     */
+    int maxExtents() {
+	return directExtents + fileSystem.sectorSize/8;
+    }
+
+    /**
+     * Decode the inode from its entry in the inode table. Reads its indirect
+     * sector if it has one.
+     */
+    void decode(byte[] table, int offset) {
+	inUse = Lib.bytesToInt(table, offset+0) != 0;
+	length = Lib.bytesToInt(table, offset+4);
+	int numExtents = Lib.bytesToInt(table, offset+8);
+	indirect = Lib.bytesToInt(table, offset+12);
+
+	byte[] extentData = new byte[Math.max(numExtents*8, 0)];
+	System.arraycopy(table, offset+16, extentData, 0,
+			 Math.min(numExtents, directExtents)*8);
+	if (numExtents > directExtents) {
+	    byte[] sector = new byte[fileSystem.sectorSize];
+	    fileSystem.disk.readSectors(indirect, 1, sector, 0);
+	    System.arraycopy(sector, 0, extentData, directExtents*8,
+			     (numExtents-directExtents)*8);
+	}
+
+	extents.clear();
+	for (int i=0; i<numExtents; i++) {
+	    extents.add(new int[] { Lib.bytesToInt(extentData, i*8),
+				    Lib.bytesToInt(extentData, i*8+4) });
+	}
+    }
+
+    /**
+     * Encode the inode into its entry in the inode table. Writes its indirect
+     * sector if it has one.
+     */
+    void encode(byte[] table, int offset) {
+	Lib.bytesFromInt(table, offset+0, inUse ? 1 : 0);
+	Lib.bytesFromInt(table, offset+4, length);
+	Lib.bytesFromInt(table, offset+8, extents.size());
+	Lib.bytesFromInt(table, offset+12, indirect);
+
+	byte[] sector = new byte[fileSystem.sectorSize];
+	for (int i=0; i<extents.size(); i++) {
+	    int[] extent = extents.get(i);
+	    if (i < directExtents) {
+		Lib.bytesFromInt(table, offset+16+i*8, extent[0]);
+		Lib.bytesFromInt(table, offset+16+i*8+4, extent[1]);
+	    }
+	    else {
+		Lib.bytesFromInt(sector, (i-directExtents)*8, extent[0]);
+		Lib.bytesFromInt(sector, (i-directExtents)*8+4, extent[1]);
+	    }
+	}
+
+	if (extents.size() > directExtents)
+	    fileSystem.disk.writeSectors(indirect, 1, sector, 0);
+    }
+
+    /**
+     * Return the number of sectors allocated to the file.
+     */
+    int numSectors() {
+	int count = 0;
+	for (int[] extent : extents)
+	    count += extent[1];
+
+	return count;
+    }
+
+    /**
+     * Find the run of consecutive sectors holding a sector of the file.
+     *
+     * @param	index	the sector of the file, counting from 0.
+     * @return	an array holding the disk sector that holds it and the number
+     *		of sectors of the file that follow it on the disk, including
+     *		itself.
+     */
+    private int[] locate(int index) {
+	for (int[] extent : extents) {
+	    if (index < extent[1])
+		return new int[] { extent[0]+index, extent[1]-index };
+
+	    index -= extent[1];
+	}
+
+	Lib.assertNotReached();
+	return null;
+    }
+
+    /**
+     * Allocate more sectors to the file. Must be called with the file system
+     * lock held.
+     *
+     * @param	count	the number of sectors needed. More may be added.
+     * @return	<tt>true</tt> if all of them could be allocated.
+     */
+    boolean grow(int count) {
+	FreeMap freeMap = fileSystem.freeMap;
+
+	while (count > 0) {
+	    int[] last = extents.isEmpty() ? null : extents.get(extents.size()-1);
+	    int hint = (last == null) ? fileSystem.dataStart : last[0]+last[1];
+
+	    // extend the last extent in place if we can
+	    if (last != null) {
+		int run = freeMap.freeRun(hint, count);
+		if (run > 0) {
+		    freeMap.mark(hint, run, true);
+		    last[1] += run;
+		    count -= run;
+		    continue;
+		}
+	    }
+
+	    if (extents.size() == maxExtents())
+		return false;
+
+	    // ask for as much again as the file has, up to a track, so that
+	    // files growing side by side do not end up in tiny pieces
+	    int wanted = Math.max(count, Math.min(Math.max(numSectors(), 4),
+						  fileSystem.sectorsPerTrack));
+	    if (extents.size() == directExtents && indirect == 0)
+		wanted++;
+
+	    int[] found = freeMap.find(wanted, hint);
+	    if (found[1] == 0)
+		return false;
+
+	    // the first extent that does not fit in the inode needs a sector
+	    if (extents.size() == directExtents && indirect == 0) {
+		if (found[1] == 1)
+		    return false;
+
+		indirect = found[0];
+		freeMap.mark(indirect, 1, true);
+		found[0]++;
+		found[1]--;
+	    }
+
+	    freeMap.mark(found[0], found[1], true);
+	    extents.add(found);
+	    count = Math.max(count - found[1], 0);
+	}
+
+	return true;
+    }
+
+    /**
+     * Free every sector of the file. Must be called with the file system
+     * lock held.
+     */
+    void truncate() {
+	for (int[] extent : extents)
+	    fileSystem.freeMap.mark(extent[0], extent[1], false);
+
+	if (indirect != 0)
+	    fileSystem.freeMap.mark(indirect, 1, false);
+
+	extents.clear();
+	indirect = 0;
+	length = 0;
+    }
+
+    /**
+     * Read part of the file. Must be called with the inode's lock held.
+     *
+     * @return	the number of bytes read.
+     */
+    int read(int pos, byte[] buf, int offset, int length) {
+	int sectorSize = fileSystem.sectorSize;
+	length = Math.max(0, Math.min(length, this.length - pos));
+
+	int amount = 0;
+	while (amount < length) {
+	    int first = (pos+amount) / sectorSize;
+	    int last = (pos+length-1) / sectorSize;
+	    int[] run = locate(first);
+	    int count = Math.min(run[1], last-first+1);
+
+	    byte[] data = new byte[count*sectorSize];
+	    fileSystem.disk.readSectors(run[0], count, data, 0);
+
+	    int start = (pos+amount) % sectorSize;
+	    int n = Math.min(length-amount, count*sectorSize - start);
+	    System.arraycopy(data, start, buf, offset+amount, n);
+
+	    amount += n;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write part of the file, growing it if necessary. Must be called with
+     * the inode's lock held.
+     *
+     * @return	the number of bytes written, which is less than
+     *		<i>length</i> if the disk filled up.
+     */
+    int write(int pos, byte[] buf, int offset, int length) {
+	int sectorSize = fileSystem.sectorSize;
+
+	// the bytes between the end of the file and pos read as zeros
+	if (pos > this.length) {
+	    int gap = pos - this.length;
+	    if (write(this.length, new byte[gap], 0, gap) < gap)
+		return 0;
+	}
+
+	int end = pos + length;
+	int needed = (end + sectorSize-1) / sectorSize - numSectors();
+	if (needed > 0) {
+	    boolean grown = fileSystem.grow(this, needed);
+	    if (!grown)
+		end = Math.min(end, numSectors()*sectorSize);
+	}
+	length = Math.max(end - pos, 0);
+
+	int amount = 0;
+	while (amount < length) {
+	    int first = (pos+amount) / sectorSize;
+	    int last = (pos+length-1) / sectorSize;
+	    int[] run = locate(first);
+	    int count = Math.min(run[1], last-first+1);
+
+	    byte[] data = new byte[count*sectorSize];
+	    int start = (pos+amount) % sectorSize;
+	    int n = Math.min(length-amount, count*sectorSize - start);
+
+	    // keep the bytes of partly written sectors that are in the file
+	    if (start > 0 && first*sectorSize < this.length)
+		fileSystem.disk.readSectors(run[0], 1, data, 0);
+	    if ((start+n) % sectorSize != 0 && (count > 1 || start == 0) &&
+		(first+count-1)*sectorSize < this.length)
+		fileSystem.disk.readSectors(run[0]+count-1, 1, data,
+					    (count-1)*sectorSize);
+
+	    System.arraycopy(buf, offset+amount, data, start, n);
+	    fileSystem.disk.writeSectors(run[0], count, data, 0);
+
+	    amount += n;
+	}
+
+	if (pos+amount > this.length) {
+	    this.length = pos+amount;
+	    fileSystem.updateInode(this);
+	}
+
+	return amount;
+    }
+
+    /** The number of bytes in an inode table entry. */
+    static final int size = 64;
+    /** The number of extents kept in the inode table entry. */
+    static final int directExtents = (size-16) / 8;
+
+    NachosFileSystem fileSystem;
+    int number;
+
+    boolean inUse = false;
+    int length = 0;
+    /** The extents, as pairs of first sector and number of sectors. */
+    ArrayList<int[]> extents = new ArrayList<int[]>();
+    /** The sector holding the extents past the first few, or 0. */
+    int indirect = 0;
+
+    /** The number of open files using the inode. */
+    int openCount = 0;
+    /** True if the file was removed while open. */
+    boolean removed = false;
+    Lock lock = new Lock();
+}
@@ -0,0 +1,439 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.HashMap;
+
+/**
+ * A file system kept on the machine's disk, for use as
+ * <tt>ThreadedKernel.fileSystem</tt>. The disk is laid out as:
+ *
+ * <ul>
+ * <li>sector 0, the superblock, which describes the rest;
+ * <li>the free sector map, one bit per sector (see <tt>FreeMap</tt>);
+ * <li>the inode table, <tt>NachosFileSystem.numInodes</tt> inodes of
+ *     <tt>Inode.size</tt> bytes (see <tt>Inode</tt>);
+ * <li>the data sectors, handed out to files in extents.
+ * </ul>
+ *
+ * <p>
+ * Inode 0 is the directory, a hash table of
+ * <tt>NachosFileSystem.directorySize</tt> slots (see <tt>Directory</tt>).
+ *
+ * <p>
+ * A disk that does not hold a file system is formatted when the file system
+ * is first used; set <tt>NachosFileSystem.format</tt> to format it anyway.
+ * The free map, the inode table and the directory are written through to the
+ * disk as they change, so the file system survives from one run to the next.
+ */
+public class NachosFileSystem implements FileSystem {
+    /**
+     * Allocate a new file system. The disk is not read until the file
+     * system is first used, because the kernel creates the file system
+     * before it can wait for the disk.
+     */
+    public NachosFileSystem() {
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	Inode inode = null;
+
+	getLock().acquire();
+	mount();
+
+	if (Directory.checkName(name)) {
+	    int number = directory.find(name);
+	    if (number < 0 && truncate) {
+		number = allocateInode();
+		if (number >= 0 && !directory.add(name, number)) {
+		    freeInode(getInode(number));
+		    number = -1;
+		}
+	    }
+
+	    if (number >= 0) {
+		inode = getInode(number);
+		inode.openCount++;
+	    }
+	}
+
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	if (truncate) {
+	    inode.lock.acquire();
+	    lock.acquire();
+	    inode.truncate();
+	    writeInode(inode);
+	    freeMap.flush(disk);
+	    lock.release();
+	    inode.lock.release();
+	}
+
+	return new NachosOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	getLock().acquire();
+	mount();
+
+	int number = Directory.checkName(name) ? directory.remove(name) : -1;
+	if (number >= 0) {
+	    Inode inode = getInode(number);
+	    if (inode.openCount > 0)
+		inode.removed = true;
+	    else
+		freeInode(inode);
+	}
+
+	lock.release();
+
+	return number >= 0;
+    }
+
+    /**
+     * The lock is created on first use, because the file system is created
+     * before there are threads.
+     */
+    private Lock getLock() {
+	if (lock == null)
+	    lock = new Lock();
+
+	return lock;
+    }
+
+    /**
+     * Read the superblock, free map and inode table, formatting the disk
+     * first if necessary. Does nothing if they were already read. Must be
+     * called with the lock held.
+     */
+    private void mount() {
+	if (disk != null)
+	    return;
+
+	disk = ThreadedKernel.synchDisk;
+	Lib.assertTrue(disk != null, "NachosFileSystem needs Machine.disk");
+
+	sectorSize = Machine.disk().getSectorSize();
+	numSectors = Machine.disk().getNumSectors();
+	sectorsPerTrack = Machine.disk().getSectorsPerTrack();
+	Lib.assertTrue(sectorSize % Inode.size == 0);
+
+	byte[] superblock = new byte[sectorSize];
+	disk.readSectors(0, 1, superblock, 0);
+
+	if (Lib.bytesToInt(superblock, 0) != magic ||
+	    Lib.bytesToInt(superblock, 4) != numSectors ||
+	    Config.getBoolean("NachosFileSystem.format", false)) {
+	    format();
+	    return;
+	}
+
+	numInodes = Lib.bytesToInt(superblock, 8);
+	int numSlots = Lib.bytesToInt(superblock, 12);
+	layout();
+
+	freeMap = new FreeMap(numSectors, freeMapStart, sectorSize);
+	freeMap.load(disk);
+
+	inodeTable = new byte[(dataStart-inodeStart)*sectorSize];
+	disk.readSectors(inodeStart, dataStart-inodeStart, inodeTable, 0);
+
+	directory = new Directory(getInode(0), numSlots);
+	Lib.debug(dbgFileSystem, "mounted, " + freeMap.numFree()
+		  + " free sectors");
+    }
+
+    /**
+     * Write an empty file system to the disk.
+     */
+    private void format() {
+	numInodes = Config.getInteger("NachosFileSystem.numInodes", 64);
+	int numSlots = Config.getInteger("NachosFileSystem.directorySize",
+					 numInodes*2);
+	Lib.assertTrue(numInodes > 1 && numSlots > 0);
+	layout();
+	Lib.assertTrue(dataStart < numSectors, "disk too small");
+
+	freeMap = new FreeMap(numSectors, freeMapStart, sectorSize);
+	freeMap.mark(0, dataStart, true);
+
+	inodeTable = new byte[(dataStart-inodeStart)*sectorSize];
+	disk.writeSectors(inodeStart, dataStart-inodeStart, inodeTable, 0);
+
+	// the directory never grows, so allocate all of it now
+	Inode root = getInode(0);
+	root.inUse = true;
+	int length = numSlots*Directory.entrySize;
+	Lib.assertTrue(root.grow((length + sectorSize-1) / sectorSize),
+		       "disk too small");
+	for (int[] extent : root.extents) {
+	    disk.writeSectors(extent[0], extent[1],
+			      new byte[extent[1]*sectorSize], 0);
+	}
+	root.length = length;
+	writeInode(root);
+	freeMap.flush(disk);
+	directory = new Directory(root, numSlots);
+
+	byte[] superblock = new byte[sectorSize];
+	Lib.bytesFromInt(superblock, 0, magic);
+	Lib.bytesFromInt(superblock, 4, numSectors);
+	Lib.bytesFromInt(superblock, 8, numInodes);
+	Lib.bytesFromInt(superblock, 12, numSlots);
+	disk.writeSectors(0, 1, superblock, 0);
+
+	Lib.debug(dbgFileSystem, "formatted, " + freeMap.numFree()
+		  + " free sectors");
+    }
+
+    /**
+     * Work out where the free map, inode table and data sectors start.
+     */
+    private void layout() {
+	freeMapStart = 1;
+	inodeStart = freeMapStart + FreeMap.numMapSectors(numSectors,
+							  sectorSize);
+	dataStart = inodeStart + (numInodes*Inode.size + sectorSize-1)
+	    / sectorSize;
+    }
+
+    /**
+     * Return the in-memory copy of an inode. Every open file and the
+     * directory using an inode share one copy. Must be called with the lock
+     * held.
+     */
+    private Inode getInode(int number) {
+	Inode inode = inodes.get(number);
+	if (inode == null) {
+	    inode = new Inode(this, number);
+	    inode.decode(inodeTable, number*Inode.size);
+	    inodes.put(number, inode);
+	}
+
+	return inode;
+    }
+
+    /**
+     * Find an unused inode and mark it in use. Must be called with the lock
+     * held.
+     *
+     * @return	the inode number, or -1 if every inode is in use.
+     */
+    private int allocateInode() {
+	for (int number=1; number<numInodes; number++) {
+	    if (Lib.bytesToInt(inodeTable, number*Inode.size) == 0) {
+		Inode inode = getInode(number);
+		inode.inUse = true;
+		inode.length = 0;
+		writeInode(inode);
+		return number;
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Free the sectors of an inode and mark it unused. Must be called with
+     * the lock held.
+     */
+    private void freeInode(Inode inode) {
+	inode.truncate();
+	inode.inUse = false;
+	writeInode(inode);
+	freeMap.flush(disk);
+
+	inodes.remove(inode.number);
+    }
+
+    /**
+     * Write an inode to the inode table on the disk. Must be called with the
+     * lock held.
+     */
+    void writeInode(Inode inode) {
+	Lib.assertTrue(lock.isHeldByCurrentThread());
+
+	int offset = inode.number*Inode.size;
+	inode.encode(inodeTable, offset);
+
+	int sector = offset/sectorSize;
+	disk.writeSectors(inodeStart+sector, 1, inodeTable, sector*sectorSize);
+    }
+
+    /**
+     * Write an inode whose length changed to the disk.
+     */
+    void updateInode(Inode inode) {
+	lock.acquire();
+	writeInode(inode);
+	lock.release();
+    }
+
+    /**
+     * Allocate more sectors to a file, and write its inode and the free map.
+     * Called with the inode's lock held.
+     *
+     * @return	<tt>true</tt> if all of them could be allocated.
+     */
+    boolean grow(Inode inode, int count) {
+	lock.acquire();
+
+	boolean grown = inode.grow(count);
+	writeInode(inode);
+	freeMap.flush(disk);
+
+	lock.release();
+
+	return grown;
+    }
+
+    /**
+     * Called when an open file is closed. Frees a removed file once nobody
+     * has it open.
+     */
+    private void close(Inode inode) {
+	lock.acquire();
+
+	if (--inode.openCount == 0) {
+	    if (inode.removed)
+		freeInode(inode);
+	    else if (inode.number != 0)
+		inodes.remove(inode.number);
+	}
+
+	lock.release();
+    }
+
+    private class NachosOpenFile extends OpenFileWithPosition {
+	NachosOpenFile(String name, Inode inode) {
+	    super(NachosFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    inode.lock.acquire();
+	    int amount = inode.read(pos, buf, offset, length);
+	    inode.lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (inode == null || pos < 0 || length < 0)
+		return -1;
+
+	    inode.lock.acquire();
+	    int amount = inode.write(pos, buf, offset, length);
+	    inode.lock.release();
+
+	    return (amount == 0 && length > 0) ? -1 : amount;
+	}
+
+	public int length() {
+	    if (inode == null)
+		return -1;
+
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (inode != null) {
+		NachosFileSystem.this.close(inode);
+		inode = null;
+	    }
+	}
+
+	private Inode inode;
+    }
+
+    /**
+     * Test the file system: create files that grow side by side, check that
+     * they read back and stay in few extents, and check that a file removed
+     * while it is open goes away when it is closed.
+     */
+    public static void selfTest() {
+	FileSystem fs = ThreadedKernel.fileSystem;
+	if (!(fs instanceof NachosFileSystem))
+	    return;
+
+	NachosFileSystem nfs = (NachosFileSystem) fs;
+	nfs.getLock().acquire();
+	nfs.mount();
+	int free = nfs.freeMap.numFree();
+	nfs.lock.release();
+
+	OpenFile a = fs.open("selftest.a", true);
+	OpenFile b = fs.open("selftest.b", true);
+	Lib.assertTrue(a != null && b != null);
+
+	byte[] data = new byte[300];
+	for (int i=0; i<20; i++) {
+	    for (int j=0; j<data.length; j++)
+		data[j] = (byte) (i+j);
+
+	    Lib.assertTrue(a.write(data, 0, data.length) == data.length);
+	    Lib.assertTrue(b.write(data, 0, 100) == 100);
+	}
+	Lib.assertTrue(a.length() == 20*300 && b.length() == 20*100);
+
+	byte[] check = new byte[300];
+	for (int i=0; i<20; i++) {
+	    Lib.assertTrue(a.read(i*300, check, 0, 300) == 300);
+	    for (int j=0; j<check.length; j++)
+		Lib.assertTrue(check[j] == (byte) (i+j));
+	}
+
+	Inode inode = ((NachosOpenFile) a).inode;
+	Lib.debug(dbgFileSystem, "selftest.a has " + inode.extents.size()
+		  + " extents");
+	Lib.assertTrue(inode.extents.size() <= 4);
+
+	// a hole reads as zeros
+	Lib.assertTrue(b.write(3000, data, 0, 10) == 10);
+	Lib.assertTrue(b.read(2500, check, 0, 300) == 300);
+	for (int j=0; j<300; j++)
+	    Lib.assertTrue(check[j] == 0);
+
+	Lib.assertTrue(fs.remove("selftest.a"));
+	Lib.assertTrue(fs.open("selftest.a", false) == null);
+	Lib.assertTrue(a.read(0, check, 0, 300) == 300);
+	a.close();
+	b.close();
+
+	OpenFile c = fs.open("selftest.b", false);
+	Lib.assertTrue(c != null && c.length() == 3010);
+	c.close();
+	Lib.assertTrue(fs.remove("selftest.b"));
+
+	nfs.lock.acquire();
+	Lib.assertTrue(nfs.freeMap.numFree() == free);
+	nfs.lock.release();
+    }
+
+    private static final int magic = 0x4E414348;
+
+    private Lock lock = null;
+    SynchDisk disk = null;
+    int sectorSize, numSectors, sectorsPerTrack;
+    private int numInodes;
+    private int freeMapStart, inodeStart;
+    /** The first sector after the inode table. */
+    int dataStart;
+
+    FreeMap freeMap;
+    private byte[] inodeTable;
+    private Directory directory;
+    /** The inodes in use by open files or the directory. */
+    private HashMap<Integer, Inode> inodes = new HashMap<Integer, Inode>();
+
+    private static final char dbgFileSystem = 'f';
+}
@@ -0,0 +1,453 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A file system that keeps recently used blocks of the files of another file
+ * system in a fixed number of memory buffers. Reading a cached block does
+ * not touch the underlying file system; a miss reads the whole block. Writes
+ * only change the buffer, which is written back when it is evicted, when the
+ * file is closed, or when the machine halts.
+ *
+ * <p>
+ * Buffers are replaced least recently used first. A buffer being filled or
+ * written back is busy, and anyone else who needs it waits, so reads of
+ * different blocks wait for the underlying file system at the same time.
+ *
+ * <p>
+ * Hits and misses are counted in <tt>Stats</tt>.
+ */
+public final class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new cache in front of a file system.
+     *
+     * @param	privilege	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	fileSystem	the file system to cache.
+     * @param	numBlocks	the number of buffers.
+     * @param	blockSize	the size of a buffer in bytes.
+     */
+    public CachedFileSystem(Privilege privilege, FileSystem fileSystem,
+			    int numBlocks, int blockSize) {
+	Lib.assertTrue(numBlocks > 0 && blockSize > 0);
+
+	this.privilege = privilege;
+	this.fileSystem = fileSystem;
+	this.blockSize = blockSize;
+
+	data = new byte[numBlocks][blockSize];
+	keys = new BlockKey[numBlocks];
+	busy = new boolean[numBlocks];
+	dirty = new BitSet(numBlocks);
+
+	for (int slot=0; slot<numBlocks; slot++)
+	    freeSlots.add(slot);
+    }
+
+    public OpenFile open(String name, boolean truncate) {
+	OpenFile file = fileSystem.open(name, truncate);
+	if (file == null)
+	    return null;
+
+	getLock().acquire();
+
+	// a truncated file's old blocks are stale
+	if (truncate)
+	    discard(name);
+
+	FileInfo info = files.get(name);
+	if (info == null) {
+	    info = new FileInfo(file.length());
+	    files.put(name, info);
+	}
+	else if (truncate) {
+	    info.length = 0;
+	}
+	info.openFiles.add(file);
+
+	lock.release();
+
+	return new CachedOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+	getLock().acquire();
+	discard(name);
+	lock.release();
+
+	return fileSystem.remove(name);
+    }
+
+    /**
+     * Write every dirty buffer back to the underlying file system. Called
+     * when the machine halts.
+     */
+    public void flush() {
+	// nothing has been cached yet
+	if (lock == null)
+	    return;
+
+	lock.acquire();
+	flush(null);
+	lock.release();
+    }
+
+    /**
+     * The lock is created on first use, because the cache is created before
+     * the scheduler exists.
+     */
+    private Lock getLock() {
+	if (lock == null) {
+	    lock = new Lock();
+	    blockReady = new Condition(lock);
+	}
+
+	return lock;
+    }
+
+    /**
+     * Write back the dirty buffers of a file, or of every file. Must be
+     * called with the lock held.
+     *
+     * @param	name	the file name, or <tt>null</tt> for every file.
+     */
+    private void flush(String name) {
+	for (int slot=dirty.nextSetBit(0); slot>=0;
+	     slot=dirty.nextSetBit(slot+1)) {
+	    if (name != null && !keys[slot].name.equals(name))
+		continue;
+
+	    while (busy[slot])
+		blockReady.sleep();
+
+	    if (dirty.get(slot)) {
+		busy[slot] = true;
+		writeBack(slot);
+		busy[slot] = false;
+		blockReady.wakeAll();
+	    }
+	}
+    }
+
+    /**
+     * Forget the buffers of a file without writing them back. Must be called
+     * with the lock held.
+     */
+    private void discard(String name) {
+	boolean waited;
+	do {
+	    waited = false;
+
+	    Iterator<Map.Entry<BlockKey, Integer>> i =
+		blocks.entrySet().iterator();
+	    while (i.hasNext()) {
+		Map.Entry<BlockKey, Integer> entry = i.next();
+		int slot = entry.getValue();
+
+		if (!entry.getKey().name.equals(name))
+		    continue;
+
+		if (busy[slot]) {
+		    waited = true;
+		}
+		else {
+		    i.remove();
+		    keys[slot] = null;
+		    dirty.clear(slot);
+		    freeSlots.add(slot);
+		}
+	    }
+
+	    // wait for buffers being filled or written back, then look again
+	    if (waited) {
+		blockReady.wakeAll();
+		blockReady.sleep();
+	    }
+	} while (waited);
+    }
+
+    /**
+     * Write a dirty buffer to the underlying file system, releasing the lock
+     * meanwhile. The buffer must be marked busy by the caller.
+     */
+    private void writeBack(int slot) {
+	BlockKey key = keys[slot];
+	FileInfo info = files.get(key.name);
+	Lib.assertTrue(info != null && !info.openFiles.isEmpty());
+
+	int pos = key.block*blockSize;
+	int length = Math.min(blockSize, info.length - pos);
+	OpenFile file = info.openFiles.getFirst();
+
+	dirty.clear(slot);
+
+	lock.release();
+	if (length > 0)
+	    file.write(pos, data[slot], 0, length);
+	lock.acquire();
+    }
+
+    /**
+     * Return the buffer holding a block, filling it on a miss, and mark it
+     * busy. Must be called with the lock held; releases it while waiting.
+     *
+     * @param	name	the file name.
+     * @param	file	an underlying file to fill the buffer from.
+     * @param	block	the block number.
+     * @param	fill	<tt>false</tt> if the caller will overwrite the whole
+     *			buffer, so that a miss need not read it.
+     * @return	the buffer number.
+     */
+    private int getBlock(String name, OpenFile file, int block, boolean fill) {
+	BlockKey key = new BlockKey(name, block);
+
+	while (true) {
+	    Integer cached = blocks.get(key);
+	    if (cached == null)
+		break;
+
+	    int slot = cached;
+	    if (!busy[slot]) {
+		privilege.stats.numCacheHits++;
+		busy[slot] = true;
+		return slot;
+	    }
+
+	    blockReady.sleep();
+	}
+
+	privilege.stats.numCacheMisses++;
+
+	int slot = allocateSlot();
+	keys[slot] = key;
+	busy[slot] = true;
+	blocks.put(key, slot);
+
+	FileInfo info = files.get(name);
+	int pos = block*blockSize;
+	int length = Math.min(blockSize, info.length - pos);
+
+	Arrays.fill(data[slot], (byte) 0);
+	if (fill && length > 0) {
+	    lock.release();
+	    file.read(pos, data[slot], 0, length);
+	    lock.acquire();
+	}
+
+	return slot;
+    }
+
+    /**
+     * Return a free buffer, evicting the least recently used one if there is
+     * none. Must be called with the lock held.
+     */
+    private int allocateSlot() {
+	while (freeSlots.isEmpty()) {
+	    int victim = -1;
+	    for (int slot : blocks.values()) {
+		if (!busy[slot]) {
+		    victim = slot;
+		    break;
+		}
+	    }
+
+	    if (victim < 0) {
+		blockReady.sleep();
+		continue;
+	    }
+
+	    busy[victim] = true;
+	    if (dirty.get(victim))
+		writeBack(victim);
+	    busy[victim] = false;
+
+	    // somebody may have used the block while it was written back
+	    if (dirty.get(victim) || blocks.get(keys[victim]) == null) {
+		blockReady.wakeAll();
+		continue;
+	    }
+
+	    blocks.remove(keys[victim]);
+	    keys[victim] = null;
+	    freeSlots.add(victim);
+	    blockReady.wakeAll();
+	}
+
+	return freeSlots.removeFirst();
+    }
+
+    private void releaseBlock(int slot) {
+	busy[slot] = false;
+	blockReady.wakeAll();
+    }
+
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(String name, OpenFile file) {
+	    super(CachedFileSystem.this, name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    getLock().acquire();
+
+	    FileInfo info = files.get(getName());
+	    length = Math.max(0, Math.min(length, info.length - pos));
+
+	    int amount = 0;
+	    while (amount < length) {
+		int block = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int n = Math.min(length-amount, blockSize-blockOffset);
+
+		int slot = getBlock(getName(), file, block, true);
+		System.arraycopy(data[slot], blockOffset, buf, offset+amount, n);
+		releaseBlock(slot);
+
+		amount += n;
+	    }
+
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (file == null || pos < 0 || length < 0)
+		return -1;
+
+	    getLock().acquire();
+
+	    FileInfo info = files.get(getName());
+
+	    int amount = 0;
+	    while (amount < length) {
+		int block = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int n = Math.min(length-amount, blockSize-blockOffset);
+
+		// a block past the end of the file, or overwritten entirely,
+		// need not be read first
+		boolean fill = (n < blockSize && block*blockSize < info.length);
+
+		int slot = getBlock(getName(), file, block, fill);
+		System.arraycopy(buf, offset+amount, data[slot], blockOffset, n);
+		dirty.set(slot);
+		releaseBlock(slot);
+
+		amount += n;
+		info.length = Math.max(info.length, pos+amount);
+	    }
+
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    if (file == null)
+		return -1;
+
+	    getLock().acquire();
+	    int length = files.get(getName()).length;
+	    lock.release();
+
+	    return length;
+	}
+
+	public long lastModified() {
+	    if (file == null)
+		return -1;
+
+	    return file.lastModified();
+	}
+
+	public void close() {
+	    if (file == null)
+		return;
+
+	    getLock().acquire();
+
+	    flush(getName());
+
+	    FileInfo info = files.get(getName());
+	    info.openFiles.remove(file);
+	    if (info.openFiles.isEmpty())
+		files.remove(getName());
+
+	    lock.release();
+
+	    file.close();
+	    file = null;
+	}
+
+	private OpenFile file;
+    }
+
+    /** What the cache knows about an open file. */
+    private static class FileInfo {
+	FileInfo(int length) {
+	    this.length = length;
+	}
+
+	/** The length of the file, including buffers not written back. */
+	int length;
+	/** The underlying files open under this name. */
+	LinkedList<OpenFile> openFiles = new LinkedList<OpenFile>();
+    }
+
+    private static class BlockKey {
+	BlockKey(String name, int block) {
+	    this.name = name;
+	    this.block = block;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof BlockKey))
+		return false;
+
+	    BlockKey key = (BlockKey) o;
+	    return block == key.block && name.equals(key.name);
+	}
+
+	public int hashCode() {
+	    return name.hashCode()*31 + block;
+	}
+
+	String name;
+	int block;
+    }
+
+    private Privilege privilege;
+    private FileSystem fileSystem;
+    private int blockSize;
+
+    private Lock lock = null;
+    private Condition blockReady;
+
+    /** The cached blocks, least recently used first. */
+    private LinkedHashMap<BlockKey, Integer> blocks =
+	new LinkedHashMap<BlockKey, Integer>(16, 0.75f, true);
+    private HashMap<String, FileInfo> files = new HashMap<String, FileInfo>();
+    private LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+
+    private byte[][] data;
+    private BlockKey[] keys;
+    private boolean[] busy;
+    /** The buffers that differ from the underlying file system. */
+    private BitSet dirty;
+}
@@ -0,0 +1,163 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An <tt>InterruptQueue</tt> kept in a calendar queue (R. Brown, CACM 1988).
+ * Time is divided into days of <tt>width</tt> ticks, and each day maps to
+ * one of the buckets, like the days of a year map to the pages of a desk
+ * calendar. Each bucket is a sorted list. When most entries are due within a
+ * year of the current time, adding and removing an entry both take O(1)
+ * expected time.
+ *
+ * <p>
+ * The calendar doubles or halves its number of buckets as the queue grows
+ * and shrinks. At the same time it re-estimates the day width from the
+ * spacing of the earliest entries.
+ */
+final class CalendarInterruptQueue extends InterruptQueue {
+    CalendarInterruptQueue() {
+	buckets = new Entry[minBuckets];
+    }
+
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    long firstTime() {
+	if (size == 0)
+	    return Long.MAX_VALUE;
+
+	if (minBucket < 0)
+	    minBucket = locate();
+
+	return buckets[minBucket].time;
+    }
+
+    Entry removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	int b = (minBucket >= 0) ? minBucket : locate();
+	minBucket = -1;
+
+	Entry first = buckets[b];
+	buckets[b] = first.next;
+	first.next = null;
+	size--;
+
+	lastTime = first.time;
+
+	if (size < buckets.length/2 && buckets.length > minBuckets)
+	    resize(buckets.length/2);
+
+	return first;
+    }
+
+    void insert(Entry entry) {
+	// never happens with Nachos devices, but keep the calendar correct
+	if (entry.time < lastTime)
+	    lastTime = entry.time;
+
+	int b = link(entry);
+	size++;
+
+	if (minBucket >= 0 && entry.before(buckets[minBucket]))
+	    minBucket = b;
+
+	if (size > buckets.length*2)
+	    resize(buckets.length*2);
+    }
+
+    void collect(List<Entry> entries) {
+	for (int i=0; i<buckets.length; i++) {
+	    for (Entry e=buckets[i]; e!=null; e=e.next)
+		entries.add(e);
+	}
+    }
+
+    private int bucketOf(long time) {
+	return (int) ((time / width) % buckets.length);
+    }
+
+    private int link(Entry entry) {
+	int b = bucketOf(entry.time);
+
+	if (buckets[b] == null || entry.before(buckets[b])) {
+	    entry.next = buckets[b];
+	    buckets[b] = entry;
+	}
+	else {
+	    Entry prev = buckets[b];
+	    while (prev.next != null && prev.next.before(entry))
+		prev = prev.next;
+
+	    entry.next = prev.next;
+	    prev.next = entry;
+	}
+
+	return b;
+    }
+
+    /**
+     * Find the bucket holding the first entry. Every entry is due no earlier
+     * than <tt>lastTime</tt>, so the first entry is the head of the first
+     * bucket, scanning forward one day at a time from <tt>lastTime</tt>, whose
+     * head falls within that day. If a whole year passes without a hit, fall
+     * back to comparing every bucket head.
+     */
+    private int locate() {
+	int b = bucketOf(lastTime);
+	long dayEnd = (lastTime / width + 1) * width;
+
+	for (int n=0; n<buckets.length; n++) {
+	    if (buckets[b] != null && buckets[b].time < dayEnd)
+		return b;
+
+	    if (++b == buckets.length)
+		b = 0;
+	    dayEnd += width;
+	}
+
+	int best = -1;
+	for (b=0; b<buckets.length; b++) {
+	    if (buckets[b] != null &&
+		(best < 0 || buckets[b].before(buckets[best])))
+		best = b;
+	}
+
+	Lib.assertTrue(best >= 0);
+	return best;
+    }
+
+    private void resize(int numBuckets) {
+	List<Entry> entries = new ArrayList<Entry>(size);
+	collect(entries);
+	Collections.sort(entries);
+
+	// a day about three times the average spacing of the earliest entries
+	int sample = Math.min(entries.size(), maxSample);
+	if (sample >= 2) {
+	    long span = entries.get(sample-1).time - entries.get(0).time;
+	    width = Math.max(3*span / (sample-1), 1);
+	}
+
+	buckets = new Entry[numBuckets];
+	minBucket = -1;
+
+	for (Entry e : entries)
+	    link(e);
+    }
+
+    private Entry[] buckets;
+    private long width = 1;
+    private int size = 0;
+    private long lastTime = 0;
+    private int minBucket = -1;
+
+    private static final int minBuckets = 4;
+    private static final int maxSample = 25;
+}
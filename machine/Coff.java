@@ -127,6 +127,17 @@ public class Coff {
 	return entryPoint;
     }
 
+    /**
+     * Return the name of the executable file, which identifies the executable
+     * to the file system it was opened from.
+     *
+     * @return	the name of the executable file, or <tt>null</tt> if this
+     *		loader is not backed by a file.
+     */
+    public String getName() {
+	return (file == null) ? null : file.getName();
+    }
+
     /**
      * Close the executable file and release any resources allocated by this
      * loader.
@@ -0,0 +1,343 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedList;
+
+/**
+ * A simulated disk, made of <tt>numTracks</tt> tracks of
+ * <tt>sectorsPerTrack</tt> sectors each. Sector <i>s</i> is on track
+ * <i>s</i> / <tt>sectorsPerTrack</tt>. The contents of the disk are kept in
+ * a file in the test directory, so they last from one run to the next.
+ *
+ * <p>
+ * A request reads or writes a run of consecutive sectors, and its handler is
+ * called, from an interrupt, once it is done. The time a request takes
+ * depends on where the head is: it seeks to the track of the first sector,
+ * waits for that sector to rotate under it, and then transfers the run. A
+ * seek across the whole disk takes <tt>Stats.SeekTime</tt> ticks, shorter
+ * seeks take proportionally less, and a full rotation takes
+ * <tt>Stats.RotationTime</tt> ticks. So sequential requests are much cheaper
+ * than random ones.
+ *
+ * <p>
+ * The disk serves one request at a time. Others wait in a queue, and
+ * <tt>Disk.schedule</tt> picks the order in which they are served:
+ * <tt>fcfs</tt> (first come, first served, the default), <tt>sstf</tt>
+ * (shortest seek first), <tt>scan</tt> (the elevator algorithm) or
+ * <tt>clook</tt> (serve requests in increasing track order, then jump back
+ * to the lowest one).
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory holding the disk's contents.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 32);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	sectorSize = Config.getInteger("Disk.sectorSize", 128);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+
+	numSectors = numTracks*sectorsPerTrack;
+	sectorTime = Math.max(Stats.RotationTime / sectorsPerTrack, 1);
+	rotationTime = sectorTime*sectorsPerTrack;
+
+	String schedule = Config.getString("Disk.schedule", "fcfs");
+	if (schedule.equals("fcfs"))
+	    policy = FCFS;
+	else if (schedule.equals("sstf"))
+	    policy = SSTF;
+	else if (schedule.equals("scan"))
+	    policy = SCAN;
+	else if (schedule.equals("clook"))
+	    policy = CLOOK;
+	else
+	    Lib.assertNotReached("unknown disk schedule: " + schedule);
+
+	final File f = new File(directory, Config.getString("Disk.file", "DISK"));
+	privilege.doPrivileged(new Runnable() {
+	    public void run() { getRandomAccessFile(f); }
+	});
+	Lib.assertTrue(file != null, "could not open disk file " + f);
+
+	requestDone = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+    }
+
+    private void getRandomAccessFile(File f) {
+	try {
+	    file = new RandomAccessFile(f, "rw");
+	    if (file.length() < (long) numSectors*sectorSize)
+		file.setLength((long) numSectors*sectorSize);
+	}
+	catch (IOException e) {
+	    file = null;
+	}
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of sectors on each track.
+     *
+     * @return	the number of sectors on each track.
+     */
+    public int getSectorsPerTrack() {
+	return sectorsPerTrack;
+    }
+
+    /**
+     * Return the track holding a sector.
+     *
+     * @param	sector	the sector number.
+     * @return	the track number.
+     */
+    public int trackOf(int sector) {
+	return sector / sectorsPerTrack;
+    }
+
+    /**
+     * Read a run of sectors into an array. The handler is called once the
+     * data is in the array.
+     *
+     * @param	sector		the first sector to read.
+     * @param	count		the number of sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the first byte of the array to fill.
+     * @param	handler		the callback to call when the read is done.
+     */
+    public void readSectors(int sector, int count, byte[] data, int offset,
+			    Runnable handler) {
+	Lib.assertTrue(sector >= 0 && count > 0 && sector+count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	request(new Request(READ, sector, count, data, offset, handler));
+    }
+
+    /**
+     * Write a run of sectors from an array. The handler is called once the
+     * data is on the disk; the array must not change before then.
+     *
+     * @param	sector		the first sector to write.
+     * @param	count		the number of sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the first byte of the array to write.
+     * @param	handler		the callback to call when the write is done.
+     */
+    public void writeSectors(int sector, int count, byte[] data, int offset,
+			     Runnable handler) {
+	Lib.assertTrue(sector >= 0 && count > 0 && sector+count <= numSectors);
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	request(new Request(WRITE, sector, count, data, offset, handler));
+    }
+
+    /**
+     * Take as long as reading or writing a run of sectors would, without
+     * transferring any data. Used to charge file systems kept elsewhere, like
+     * the stub file system, for the disk accesses they would make, which are
+     * counted as reads or writes like any others. The run may wrap around
+     * from the last sector to the first.
+     *
+     * @param	sector		the first sector.
+     * @param	count		the number of sectors.
+     * @param	write		<tt>true</tt> to count the access as a write.
+     * @param	handler		the callback to call when the access is done.
+     */
+    public void access(int sector, int count, boolean write,
+		       Runnable handler) {
+	Lib.assertTrue(sector >= 0 && sector < numSectors && count > 0);
+
+	request(new Request(write ? WRITE_ACCESS : READ_ACCESS, sector, count,
+			    null, 0, handler));
+    }
+
+    private void request(Request request) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	queue.add(request);
+	if (current == null)
+	    startNext();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Choose the next request to serve, and schedule its completion.
+     */
+    private void startNext() {
+	Lib.assertTrue(current == null && !queue.isEmpty());
+
+	current = choose();
+	queue.remove(current);
+
+	int track = trackOf(current.sector);
+	int distance = Math.abs(track - headTrack);
+	if (track != headTrack)
+	    direction = (track > headTrack) ? 1 : -1;
+
+	// seek, wait for the first sector to come around, then transfer
+	long seek = (distance*(long) Stats.SeekTime + numTracks-1) / numTracks;
+	long phase = (privilege.stats.totalTicks + seek) % rotationTime;
+	long start = (current.sector % sectorsPerTrack) * (long) sectorTime;
+	long latency = (start - phase + rotationTime) % rotationTime;
+	long transfer = current.count * (long) sectorTime;
+
+	privilege.stats.numDiskSeekTracks += distance;
+	headTrack = trackOf((current.sector + current.count - 1) % numSectors);
+
+	Lib.debug(dbgDisk, "sector " + current.sector + " x" + current.count
+		  + ": seek " + seek + ", latency " + latency
+		  + ", transfer " + transfer);
+
+	privilege.interrupt.schedule(seek + latency + transfer, "disk",
+				     requestDone);
+    }
+
+    /**
+     * Return the queued request the scheduling policy serves next.
+     */
+    private Request choose() {
+	if (policy == FCFS)
+	    return queue.getFirst();
+
+	Request best = null;
+	Request lowest = null;
+	int bestDistance = 0;
+
+	for (int pass=0; pass<2 && best == null; pass++) {
+	    for (Request request : queue) {
+		int track = trackOf(request.sector);
+		int distance = track - headTrack;
+
+		if (lowest == null || track < trackOf(lowest.sector))
+		    lowest = request;
+
+		// SCAN and C-LOOK only look ahead of the head
+		if (policy == SCAN || policy == CLOOK) {
+		    distance *= (policy == SCAN) ? direction : 1;
+		    if (distance < 0)
+			continue;
+		}
+		distance = Math.abs(distance);
+
+		if (best == null || distance < bestDistance) {
+		    best = request;
+		    bestDistance = distance;
+		}
+	    }
+
+	    // nothing ahead: SCAN turns around, C-LOOK goes back to the start
+	    if (best == null && policy == SCAN)
+		direction = -direction;
+	    else if (best == null && policy == CLOOK)
+		best = lowest;
+	}
+
+	return best;
+    }
+
+    private void requestDone() {
+	Request request = current;
+	current = null;
+
+	if (request.type == READ || request.type == WRITE)
+	    transfer(request);
+
+	if (request.type == READ || request.type == READ_ACCESS)
+	    privilege.stats.numDiskReads += request.count;
+	else
+	    privilege.stats.numDiskWrites += request.count;
+
+	if (!queue.isEmpty())
+	    startNext();
+
+	request.handler.run();
+    }
+
+    private void transfer(Request request) {
+	long pos = (long) request.sector*sectorSize;
+	int length = request.count*sectorSize;
+
+	try {
+	    file.seek(pos);
+	    if (request.type == READ)
+		file.readFully(request.data, request.offset, length);
+	    else
+		file.write(request.data, request.offset, length);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk file I/O failed");
+	}
+    }
+
+    private static class Request {
+	Request(int type, int sector, int count, byte[] data, int offset,
+		Runnable handler) {
+	    this.type = type;
+	    this.sector = sector;
+	    this.count = count;
+	    this.data = data;
+	    this.offset = offset;
+	    this.handler = handler;
+	}
+
+	int type;
+	int sector, count;
+	byte[] data;
+	int offset;
+	Runnable handler;
+    }
+
+    private static final int READ = 0, WRITE = 1;
+    private static final int READ_ACCESS = 2, WRITE_ACCESS = 3;
+    private static final int FCFS = 0, SSTF = 1, SCAN = 2, CLOOK = 3;
+
+    private Privilege privilege;
+    private RandomAccessFile file = null;
+
+    private int numTracks, sectorsPerTrack, sectorSize, numSectors;
+    /** The time a sector takes to pass under the head. */
+    private int sectorTime;
+    private long rotationTime;
+    private int policy;
+
+    private Runnable requestDone;
+    private LinkedList<Request> queue = new LinkedList<Request>();
+    private Request current = null;
+    private int headTrack = 0;
+    /** The direction the head last moved in, for SCAN. */
+    private int direction = 1;
+
+    private static final char dbgDisk = 'd';
+}
@@ -0,0 +1,85 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.List;
+
+/**
+ * An <tt>InterruptQueue</tt> kept in an array-backed binary min-heap. Adding
+ * and removing an entry costs O(log n) with no allocation once the heap and
+ * the entry pool have grown to the working set.
+ */
+final class HeapInterruptQueue extends InterruptQueue {
+    boolean isEmpty() {
+	return size == 0;
+    }
+
+    long firstTime() {
+	return size == 0 ? Long.MAX_VALUE : heap[0].time;
+    }
+
+    Entry removeFirst() {
+	Lib.assertTrue(size > 0);
+
+	Entry first = heap[0];
+	Entry last = heap[--size];
+	heap[size] = null;
+
+	if (size > 0)
+	    siftDown(last);
+
+	return first;
+    }
+
+    void insert(Entry entry) {
+	if (size == heap.length) {
+	    Entry[] grown = new Entry[size*2];
+	    System.arraycopy(heap, 0, grown, 0, size);
+	    heap = grown;
+	}
+
+	siftUp(entry, size++);
+    }
+
+    void collect(List<Entry> entries) {
+	for (int i=0; i<size; i++)
+	    entries.add(heap[i]);
+    }
+
+    private void siftUp(Entry entry, int i) {
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!entry.before(heap[parent]))
+		break;
+
+	    heap[i] = heap[parent];
+	    i = parent;
+	}
+
+	heap[i] = entry;
+    }
+
+    private void siftDown(Entry entry) {
+	int i = 0;
+
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= size)
+		break;
+
+	    if (child+1 < size && heap[child+1].before(heap[child]))
+		child++;
+
+	    if (!heap[child].before(entry))
+		break;
+
+	    heap[i] = heap[child];
+	    i = child;
+	}
+
+	heap[i] = entry;
+    }
+
+    private Entry[] heap = new Entry[16];
+    private int size = 0;
+}
@@ -4,10 +4,6 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
-
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
  * hardware provides a method (<tt>setStatus()</tt>) to enable or disable
@@ -53,7 +49,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = InterruptQueue.create(Config.getString("Interrupt.eventQueue",
+							 "heap"));
     }
 
     /**
@@ -124,13 +121,15 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	pending.add(time, type, handler);
 
-	pending.add(toOccur);
+	if (time < nextDue)
+	    nextDue = time;
     }
 
     private void tick(boolean inKernelMode) {
@@ -145,6 +144,12 @@ public final class Interrupt {
 	    stats.totalTicks += Stats.UserTick;
 	}
 
+	// fast path: nothing can be due before nextDue, and nothing to trace
+	if (stats.totalTicks < nextDue && !Lib.test(dbgInt)) {
+	    enabled = true;
+	    return;
+	}
+
 	if (Lib.test(dbgInt))
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
@@ -153,6 +158,24 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long userTicksBeforeDue() {
+	// every tick must go through tick() for the debug trace
+	if (Lib.test(dbgInt))
+	    return 0;
+
+	long quiet = nextDue - privilege.stats.totalTicks - 1;
+	return Math.max(quiet / Stats.UserTick, 0);
+    }
+
+    private void tickUser(long numTicks) {
+	Lib.assertTrue(numTicks >= 0 && numTicks <= userTicksBeforeDue());
+
+	Stats stats = privilege.stats;
+
+	stats.userTicks += numTicks * Stats.UserTick;
+	stats.totalTicks += numTicks * Stats.UserTick;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,29 +184,32 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
-	    return;
-
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (nextDue > time)
 	    return;
 
-	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (pending.firstTime() <= time) {
+	    InterruptQueue.Entry next = pending.removeFirst();
+	    Runnable handler = next.handler;
 
 	    Lib.assertTrue(next.time <= time);
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    if (Lib.test(dbgInt))
+		System.out.println("  " + next.type);
+
+	    // the handler may schedule more interrupts, reusing this entry
+	    pending.recycle(next);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
+	nextDue = pending.firstTime();
+
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
@@ -192,8 +218,7 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	for (InterruptQueue.Entry toOccur : pending.entries()) {
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,43 +226,17 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
-    private long numPendingInterruptsCreated = 0;
-
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+    private InterruptQueue pending;
+    /**
+     * The time of the earliest pending interrupt, or
+     * <tt>Long.MAX_VALUE</tt> if none is pending. No interrupt can become due
+     * before this time, so <tt>tick()</tt> can skip <tt>checkIfDue()</tt>
+     * entirely until it is reached.
+     */
+    private long nextDue = Long.MAX_VALUE;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +248,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long userTicksBeforeDue() {
+	    return Interrupt.this.userTicksBeforeDue();
+	}
+
+	public void tickUser(long numTicks) {
+	    Interrupt.this.tickUser(numTicks);
+	}
     }
 }
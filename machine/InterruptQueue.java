@@ -0,0 +1,181 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The queue of pending interrupts kept by <tt>Interrupt</tt>. Entries are
+ * ordered by the time they are due, and entries due at the same time are
+ * ordered by the order in which they were scheduled, so every implementation
+ * dispatches interrupts in exactly the same order.
+ *
+ * <p>
+ * Entries are pooled: an entry removed with <tt>removeFirst()</tt> should be
+ * handed back with <tt>recycle()</tt> once the caller is done with it, and
+ * will then be reused by a later <tt>add()</tt>.
+ *
+ * <p>
+ * The implementation is selected with the <tt>Interrupt.eventQueue</tt> key:
+ * <tt>tree</tt> (a red-black tree), <tt>heap</tt> (an array-backed binary
+ * heap, the default) or <tt>calendar</tt> (a calendar queue, which suits
+ * many near-term events such as those of the elevator bank).
+ */
+abstract class InterruptQueue {
+    /**
+     * Create the interrupt queue named by <tt>name</tt>.
+     *
+     * @param	name	<tt>tree</tt>, <tt>heap</tt> or <tt>calendar</tt>.
+     * @return	a new, empty interrupt queue.
+     */
+    static InterruptQueue create(String name) {
+	if (name.equals("tree"))
+	    return new TreeInterruptQueue();
+	else if (name.equals("heap"))
+	    return new HeapInterruptQueue();
+	else if (name.equals("calendar"))
+	    return new CalendarInterruptQueue();
+
+	Lib.assertNotReached("unknown interrupt queue: " + name);
+	return null;
+    }
+
+    /**
+     * Schedule a new entry.
+     *
+     * @param	time	the time at which the entry is due.
+     * @param	type	the type of the interrupt, for debugging.
+     * @param	handler	the interrupt handler.
+     */
+    void add(long time, String type, Runnable handler) {
+	Entry entry;
+
+	if (numFree > 0) {
+	    entry = free[--numFree];
+	    free[numFree] = null;
+	}
+	else {
+	    entry = new Entry();
+	}
+
+	entry.time = time;
+	entry.id = numEntriesCreated++;
+	entry.type = type;
+	entry.handler = handler;
+
+	insert(entry);
+    }
+
+    /**
+     * Return an entry removed with <tt>removeFirst()</tt> to the pool.
+     *
+     * @param	entry	the entry, which must no longer be used by the caller.
+     */
+    void recycle(Entry entry) {
+	entry.type = null;
+	entry.handler = null;
+	entry.next = null;
+
+	if (numFree == free.length) {
+	    if (numFree == maxFree)
+		return;
+
+	    Entry[] grown = new Entry[Math.min(numFree*2, maxFree)];
+	    System.arraycopy(free, 0, grown, 0, numFree);
+	    free = grown;
+	}
+
+	free[numFree++] = entry;
+    }
+
+    /**
+     * Return every pending entry, in the order in which they will be
+     * dispatched. Intended for debugging only.
+     *
+     * @return	the pending entries, in order.
+     */
+    List<Entry> entries() {
+	List<Entry> entries = new ArrayList<Entry>();
+	collect(entries);
+	Collections.sort(entries);
+	return entries;
+    }
+
+    /**
+     * Test whether any entries are pending.
+     *
+     * @return	<tt>true</tt> if no entries are pending.
+     */
+    abstract boolean isEmpty();
+
+    /**
+     * Return the time of the first pending entry.
+     *
+     * @return	the time of the first entry, or <tt>Long.MAX_VALUE</tt> if
+     *		the queue is empty.
+     */
+    abstract long firstTime();
+
+    /**
+     * Remove and return the first pending entry. The queue must not be
+     * empty.
+     *
+     * @return	the first entry.
+     */
+    abstract Entry removeFirst();
+
+    /**
+     * Insert a freshly initialized entry.
+     *
+     * @param	entry	the entry to insert.
+     */
+    abstract void insert(Entry entry);
+
+    /**
+     * Add every pending entry, in any order, to <tt>entries</tt>.
+     *
+     * @param	entries	the list to add the entries to.
+     */
+    abstract void collect(List<Entry> entries);
+
+    /**
+     * A pending interrupt.
+     */
+    static final class Entry implements Comparable<Entry> {
+	/**
+	 * Test whether this entry must be dispatched before <tt>e</tt>.
+	 *
+	 * @param	e	another entry.
+	 * @return	<tt>true</tt> if this entry comes first.
+	 */
+	boolean before(Entry e) {
+	    return time < e.time || (time == e.time && id < e.id);
+	}
+
+	public int compareTo(Entry e) {
+	    if (before(e))
+		return -1;
+	    else if (e.before(this))
+		return 1;
+	    else
+		return 0;
+	}
+
+	long time;
+	long id;
+	String type;
+	Runnable handler;
+
+	/** Link used by implementations that chain entries together. */
+	Entry next;
+    }
+
+    private long numEntriesCreated = 0;
+
+    private Entry[] free = new Entry[16];
+    private int numFree = 0;
+
+    private static final int maxFree = 1024;
+}
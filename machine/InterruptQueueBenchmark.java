@@ -0,0 +1,115 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Random;
+
+/**
+ * A microbenchmark comparing the <tt>InterruptQueue</tt> implementations
+ * under the classic hold model: the queue holds a fixed number of pending
+ * entries, and each step removes the first entry and schedules a new one a
+ * random delay later. Before timing, it checks that every implementation
+ * dispatches the same entries in the same order.
+ *
+ * <p>
+ * Run with <tt>java nachos.machine.InterruptQueueBenchmark</tt>.
+ */
+public final class InterruptQueueBenchmark {
+    private InterruptQueueBenchmark() {
+    }
+
+    public static void main(String[] args) {
+	int[] sizes = { 4, 64, 1024 };
+	int steps = 2000000;
+
+	for (int i=0; i<sizes.length; i++)
+	    checkOrder(sizes[i], 20000);
+
+	System.out.println("hold model, " + steps + " steps, ns per step");
+	System.out.println("pending\ttree\theap\tcalendar");
+
+	for (int i=0; i<sizes.length; i++) {
+	    System.out.print(sizes[i]);
+	    for (int j=0; j<queues.length; j++) {
+		// warm up, then take the best of three
+		long best = Long.MAX_VALUE;
+		for (int k=0; k<4; k++) {
+		    long ns = hold(InterruptQueue.create(queues[j]),
+				   sizes[i], steps);
+		    if (k > 0)
+			best = Math.min(best, ns);
+		}
+		System.out.print("\t" + best/steps);
+	    }
+	    System.out.println();
+	}
+    }
+
+    private static void checkOrder(int size, int steps) {
+	InterruptQueue[] q = new InterruptQueue[queues.length];
+	for (int j=0; j<q.length; j++)
+	    q[j] = InterruptQueue.create(queues[j]);
+
+	Random random = new Random(size);
+	long now = 0;
+
+	for (int i=0; i<size; i++) {
+	    long time = now + delay(random);
+	    for (int j=0; j<q.length; j++)
+		q[j].add(time, "bench", null);
+	}
+
+	for (int i=0; i<steps; i++) {
+	    InterruptQueue.Entry first = q[0].removeFirst();
+	    now = first.time;
+
+	    for (int j=1; j<q.length; j++) {
+		InterruptQueue.Entry e = q[j].removeFirst();
+		Lib.assertTrue(e.time == first.time && e.id == first.id,
+			       queues[j] + " dispatched out of order");
+		q[j].recycle(e);
+	    }
+	    q[0].recycle(first);
+
+	    long time = now + delay(random);
+	    for (int j=0; j<q.length; j++)
+		q[j].add(time, "bench", null);
+	}
+    }
+
+    private static long hold(InterruptQueue q, int size, int steps) {
+	Random random = new Random(size);
+	long now = 0;
+
+	for (int i=0; i<size; i++)
+	    q.add(now + delay(random), "bench", null);
+
+	long start = System.nanoTime();
+
+	for (int i=0; i<steps; i++) {
+	    InterruptQueue.Entry first = q.removeFirst();
+	    now = first.time;
+	    q.recycle(first);
+
+	    q.add(now + delay(random), "bench", null);
+	}
+
+	return System.nanoTime() - start;
+    }
+
+    /**
+     * A delay mixing the device latencies: mostly short, elevator-like
+     * delays, with the occasional timer or network delay, and many ties.
+     */
+    private static long delay(Random random) {
+	int r = random.nextInt(16);
+	if (r < 12)
+	    return 1 + random.nextInt(Stats.ElevatorTicks);
+	else if (r < 15)
+	    return Stats.ConsoleTime;
+	else
+	    return Stats.NetworkTime;
+    }
+
+    private static final String[] queues = { "tree", "heap", "calendar" };
+}
@@ -95,6 +95,9 @@ public final class Machine {
      * Print stats, and terminate Nachos.
      */
     public static void halt() {
+	if (stubFileSystem instanceof CachedFileSystem)
+	    ((CachedFileSystem) stubFileSystem).flush();
+
 	System.out.print("Machine halting!\n\n");
 	stats.print();
 	terminate();
@@ -182,9 +185,20 @@ public final class Machine {
 	if (Config.getBoolean("Machine.console"))
 	    console = new StandardConsole(privilege);
 
-	if (Config.getBoolean("Machine.stubFileSystem"))
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege, testDirectory);
+
+	if (Config.getBoolean("Machine.stubFileSystem")) {
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
+	    int cacheBlocks = Config.getInteger("FileSystem.cacheBlocks", 0);
+	    if (cacheBlocks > 0) {
+		stubFileSystem = new CachedFileSystem(privilege, stubFileSystem,
+						      cacheBlocks,
+						      Processor.pageSize);
+	    }
+	}
+
 	if (Config.getBoolean("Machine.networkLink"))
 	    networkLink = new NetworkLink(privilege);
     }
@@ -330,6 +344,13 @@ public final class Machine {
      */
     public static SerialConsole console() { return console; }
     
+    /**
+     * Return the disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
+    
     /**
      * Return the stub filesystem.
      *
@@ -356,6 +377,7 @@ public final class Machine {
     private static ElevatorBank bank = null;
     private static Processor processor = null;
     private static SerialConsole console = null;
+    private static Disk disk = null;
     private static FileSystem stubFileSystem = null;
     private static NetworkLink networkLink = null;
     private static AutoGrader autoGrader = null;
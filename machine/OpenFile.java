@@ -86,6 +86,17 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Get the time this file was last modified, as the host measures it, so
+     * that a change made from outside Nachos can be noticed.
+     *
+     * @return	the time this file was last modified, or -1 if it is not
+     *		known.
+     */
+    public long lastModified() {
+	return -1;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
@@ -47,10 +47,53 @@ public final class Processor {
 
 	mainMemory = new byte[pageSize * numPhysPages];
 
+	usingMemos = Config.getBoolean("Processor.translationMemo", true);
+	invalidateMemos();
+
+	usingDecodeCache = Config.getBoolean("Processor.decodeCache", true);
+	if (usingDecodeCache)
+	    decodeCache = new DecodedInstruction[numPhysPages][];
+
+	String engine = Config.getString("Processor.executionEngine",
+					 "interpreter");
+	if (engine.equals("block")) {
+	    usingBlockEngine = true;
+	    blockCache = new BasicBlock[numPhysPages][];
+	}
+	else {
+	    Lib.assertTrue(engine.equals("interpreter"),
+			   "unknown execution engine: " + engine);
+	    usingBlockEngine = false;
+	}
+
 	if (usingTLB) {
+	    if (Config.getBoolean("Processor.variableTLB", false))
+		tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+
+	    String organization =
+		Config.getString("Processor.tlbOrganization", "fully");
+	    if (organization.equals("fully"))
+		tlbWays = tlbSize;
+	    else if (organization.equals("set"))
+		tlbWays = Config.getInteger("Processor.tlbWays", 2);
+	    else
+		Lib.assertNotReached("unknown TLB organization: " + organization);
+
+	    // An instruction can need its own page and a data page at once. If
+	    // both fall in a set with room for only one of them, each miss
+	    // evicts the other and the instruction never completes. So there
+	    // are no direct-mapped TLBs.
+	    Lib.assertTrue(tlbWays >= 2 && tlbSize % tlbWays == 0,
+			   "bad TLB geometry");
+	    tlbSets = tlbSize / tlbWays;
+
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+
+	    // a set of a few ways is searched directly
+	    if (tlbWays > maxSearchedWays)
+		tlbIndex = new TLBIndex();
 	}
 	else {
 	    translations = null;
@@ -91,17 +134,46 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	invalidateMemos();
+
 	Instruction inst = new Instruction();
+
+	// user ticks that can still pass before an interrupt is due, and user
+	// ticks that have passed but have not yet been added to the stats
+	long quiet = 0;
+	long batched = 0;
 	
 	while (true) {
+	    if (usingBlockEngine && inst.runBlock())
+		continue;
+
 	    try {
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		// the kernel must see the exact time
+		privilege.interrupt.tickUser(batched);
+		batched = 0;
+		quiet = 0;
+
 		e.handle();
 	    }
 
+	    if (quiet > 0) {
+		quiet--;
+		batched++;
+		continue;
+	    }
+
+	    privilege.interrupt.tickUser(batched);
+	    batched = 0;
+
 	    privilege.interrupt.tick(false);
+	    invalidateMemos();
+
+	    // blocks batch their own ticks
+	    if (!usingBlockEngine)
+		quiet = privilege.interrupt.userTicksBeforeDue();
 	}
     }
 
@@ -175,6 +247,7 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+	invalidateMemos();
     }
 
     /**
@@ -188,6 +261,35 @@ public final class Processor {
 	return tlbSize;
     }
 
+    /**
+     * Return the number of TLB entries in each set. The TLB has
+     * <tt>getTLBSize()/getTLBAssociativity()</tt> sets. A fully associative
+     * TLB has a single set. Every set has at least two entries, so that an
+     * instruction and the data it accesses can both be mapped.
+     *
+     * @return	the number of TLB entries in each set.
+     */
+    public int getTLBAssociativity() {
+	Lib.assertTrue(usingTLB);
+
+	return tlbWays;
+    }
+
+    /**
+     * Return the set of the TLB that can hold a translation for the
+     * specified virtual page. The set consists of the TLB entries numbered
+     * <tt>set*getTLBAssociativity()</tt> through
+     * <tt>(set+1)*getTLBAssociativity()-1</tt>.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the set that can hold a translation for <tt>vpn</tt>.
+     */
+    public int getTLBSet(int vpn) {
+	Lib.assertTrue(usingTLB);
+
+	return (int) ((vpn & 0xFFFFFFFFL) % tlbSets);
+    }
+
     /**
      * Returns the specified TLB entry.
      *
@@ -205,8 +307,10 @@ public final class Processor {
      * Fill the specified TLB entry.
      *
      * <p>
-     * The TLB is fully associative, so the location of an entry within the TLB
-     * does not affect anything.
+     * If the TLB is fully associative (the default), the location of an entry
+     * within the TLB does not affect anything. Otherwise, an entry is only
+     * found by address translation if it is written to the set returned by
+     * <tt>getTLBSet()</tt> for its virtual page.
      *
      * @param	number	the index into the TLB.
      * @param	entry	the new contents of the TLB entry.
@@ -215,7 +319,39 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	TranslationEntry old = translations[number];
 	translations[number] = new TranslationEntry(entry);
+	invalidateMemos();
+
+	// entries outside the set for their page can never be found
+	if (tlbIndex != null) {
+	    if (old.valid && getTLBSet(old.vpn) == number/tlbWays)
+		tlbIndex.remove(old.vpn, number);
+	    if (entry.valid && getTLBSet(entry.vpn) == number/tlbWays)
+		tlbIndex.add(entry.vpn, number);
+	}
+    }
+
+    /**
+     * Find the valid TLB entry for the specified virtual page. If several
+     * valid entries match, the lowest-numbered one wins.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the matching TLB entry, or <tt>null</tt> on a TLB miss.
+     */
+    private TranslationEntry lookupTLB(int vpn) {
+	if (tlbIndex != null) {
+	    int number = tlbIndex.get(vpn);
+	    return (number < 0) ? null : translations[number];
+	}
+
+	int first = getTLBSet(vpn) * tlbWays;
+	for (int i=first; i<first+tlbWays; i++) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		return translations[i];
+	}
+
+	return null;
     }
 
     /**
@@ -275,6 +411,21 @@ public final class Processor {
 	return (int) (((long) address & 0xFFFFFFFFL) % pageSize);
     }
 
+    /**
+     * Forget every memoized translation. Called whenever the kernel may have
+     * changed a translation, or cleared a <tt>used</tt> or <tt>dirty</tt>
+     * bit that a memo would otherwise keep from being set again. The kernel
+     * only runs from exception and interrupt handlers, and a context switch
+     * only happens inside the kernel, so it is enough to invalidate on the
+     * way into and out of those handlers, and in the methods that change the
+     * translations.
+     */
+    private void invalidateMemos() {
+	memoVpn[memoFetch] = -1;
+	memoVpn[memoLoad] = -1;
+	memoVpn[memoStore] = -1;
+    }
+
     private void finishLoad() {
 	delayedLoad(0, 0, 0);
     }
@@ -286,14 +437,25 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * The last page translated for each kind of reference is memoized, and
+     * another reference to that page skips straight to the physical address.
+     * The checks it skips cannot fail and the bits it skips are already set,
+     * because the memo is only filled once they have passed and is dropped
+     * whenever the translation or its bits may have changed. Stores have a
+     * memo of their own, so a page is always marked dirty by its first store.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
-     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	memo	the kind of reference: <tt>memoFetch</tt>,
+     *			<tt>memoLoad</tt> or <tt>memoStore</tt>.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
+    private int translate(int vaddr, int size, int memo)
 	throws MipsException {
+	boolean writing = (memo == memoStore);
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -308,6 +470,14 @@ public final class Processor {
 	int vpn = pageFromAddress(vaddr);
 	int offset = offsetFromAddress(vaddr);
 
+	if (memoVpn[memo] == vpn) {
+	    int paddr = memoBase[memo] + offset;
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	    return paddr;
+	}
+
 	TranslationEntry entry = null;
 
 	// if not using a TLB, then the vpn is an index into the table
@@ -324,12 +494,7 @@ public final class Processor {
 	}
 	// else, look through all TLB entries for matching vpn
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    entry = lookupTLB(vpn);
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -355,6 +520,11 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	if (usingMemos) {
+	    memoVpn[memo] = vpn;
+	    memoBase[memo] = ppn*pageSize;
+	}
+
 	int paddr = (ppn*pageSize) + offset;
 
 	if (Lib.test(dbgProcessor))
@@ -378,7 +548,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, memoLoad),
 				   size);
 
 	if (Lib.test(dbgProcessor))
@@ -405,9 +575,146 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
-	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+
+	int paddr = translate(vaddr, size, memoStore);
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	if (usingDecodeCache)
+	    invalidateDecoded(paddr);
+	if (usingBlockEngine)
+	    blockCache[paddr / pageSize] = null;
+    }
+
+    /**
+     * Fetch the instruction at <i>vaddr</i> and return its decoded form.
+     *
+     * <p>
+     * Decoded instructions are cached by physical address. A cached entry is
+     * only reused if the word in memory still matches the word it was decoded
+     * from, so a kernel that writes physical memory directly can never cause
+     * a stale instruction to execute.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the decoded instruction.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private DecodedInstruction fetchInstruction(int vaddr)
+	throws MipsException {
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=4");
+
+	int paddr = translate(vaddr, 4, memoFetch);
+	int value = Lib.bytesToInt(mainMemory, paddr);
+
+	if (Lib.test(dbgProcessor))
+	    System.out.println("\t\tvalue read=0x" + Lib.toHexString(value, 8));
+
+	return decodeInstruction(paddr, value);
+    }
+
+    /**
+     * Return the decoded form of <i>value</i>, the word at physical address
+     * <i>paddr</i>, using the decode cache if it is enabled.
+     *
+     * @param	paddr	the physical address of the instruction.
+     * @param	value	the instruction word currently stored there.
+     * @return		the decoded instruction.
+     */
+    private DecodedInstruction decodeInstruction(int paddr, int value) {
+	if (!usingDecodeCache)
+	    return new DecodedInstruction(value);
+
+	int ppn = paddr / pageSize;
+	DecodedInstruction[] page = decodeCache[ppn];
+	if (page == null) {
+	    page = new DecodedInstruction[pageSize/4];
+	    decodeCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	DecodedInstruction decoded = page[index];
+	if (decoded == null || decoded.value != value) {
+	    decoded = new DecodedInstruction(value);
+	    page[index] = decoded;
+	}
+
+	return decoded;
+    }
+
+    /**
+     * Discard the cached decoding of the word containing <i>paddr</i>, if
+     * any. Called whenever the processor stores to physical memory.
+     *
+     * @param	paddr	the physical address that was written.
+     */
+    private void invalidateDecoded(int paddr) {
+	DecodedInstruction[] page = decodeCache[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+    }
+
+    /**
+     * Return the basic block starting at the instruction at <i>vaddr</i>,
+     * building it if it is not already cached.
+     *
+     * @param	vaddr	the virtual address of the first instruction.
+     * @return		the basic block starting at <i>vaddr</i>.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private BasicBlock fetchBlock(int vaddr) throws MipsException {
+	int paddr = translate(vaddr, 4, memoFetch);
+
+	int ppn = paddr / pageSize;
+	BasicBlock[] page = blockCache[ppn];
+	if (page == null) {
+	    page = new BasicBlock[pageSize/4];
+	    blockCache[ppn] = page;
+	}
+
+	int index = (paddr % pageSize) / 4;
+	BasicBlock block = page[index];
+	if (block == null) {
+	    block = new BasicBlock(paddr);
+	    page[index] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * Discard the cached basic block starting at physical address
+     * <i>paddr</i>.
+     *
+     * @param	paddr	the physical address of the block's first
+     *			instruction.
+     */
+    private void invalidateBlock(int paddr) {
+	BasicBlock[] page = blockCache[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) / 4] = null;
+    }
+
+    /**
+     * Discard every cached instruction decoded from the specified physical
+     * page. Called when a page is reloaded wholesale, for example by
+     * <tt>CoffSection.loadPage()</tt>.
+     *
+     * <p>
+     * The decode and block caches are indexed by physical address, so
+     * remapping a virtual page onto a different frame never needs to
+     * invalidate them.
+     *
+     * @param	ppn	the physical page whose contents were replaced.
+     */
+    void invalidateDecodedPage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	if (usingDecodeCache)
+	    decodeCache[ppn] = null;
+	if (usingBlockEngine)
+	    blockCache[ppn] = null;
     }
 
     /**
@@ -541,6 +848,30 @@ public final class Processor {
     private boolean usingTLB;
     /** Number of TLB entries. */
     private int tlbSize = 4;
+    /** Number of TLB entries in each set. */
+    private int tlbWays;
+    /** Number of TLB sets. */
+    private int tlbSets;
+    /**
+     * A vpn-indexed lookup structure over a large set, or <tt>null</tt> if
+     * each set is small enough to search.
+     */
+    private TLBIndex tlbIndex = null;
+
+    /** <tt>true</tt> if translations are memoized. */
+    private boolean usingMemos;
+    /**
+     * The virtual page last translated for each kind of reference, or -1,
+     * indexed by <tt>memoFetch</tt>, <tt>memoLoad</tt> and
+     * <tt>memoStore</tt>.
+     */
+    private int[] memoVpn = new int[3];
+    /** The physical address of the page in each memo. */
+    private int[] memoBase = new int[3];
+
+    private static final int memoFetch = 0, memoLoad = 1, memoStore = 2;
+    /** The most ways searched directly on each translation. */
+    private static final int maxSearchedWays = 4;
     /**
      * Either an associative or direct-mapped set of translation entries,
      * depending on whether there is a TLB.
@@ -556,6 +887,26 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /** <tt>true</tt> if decoded instructions are cached. */
+    private boolean usingDecodeCache;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. The array for a page is allocated on first fetch.
+     */
+    private DecodedInstruction[][] decodeCache;
+
+    /**
+     * <tt>true</tt> if straight-line runs of instructions are dispatched as
+     * whole basic blocks, rather than one instruction at a time.
+     */
+    private boolean usingBlockEngine;
+    /**
+     * Basic blocks, indexed by the physical page and word of their first
+     * instruction. The array for a page is allocated when the first block
+     * on that page is built, and dropped whenever the page is written.
+     */
+    private BasicBlock[][] blockCache;
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
@@ -563,9 +914,110 @@ public final class Processor {
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
 
+    /**
+     * A hash table from virtual page number to the lowest-numbered valid
+     * TLB entry for that page, for TLBs with large sets. It uses open
+     * addressing with linear probing, and it is kept coherent by
+     * <tt>writeTLBEntry()</tt>, the only way TLB entries change.
+     *
+     * <p>
+     * Normally each page has at most one valid entry. To keep the first-match
+     * semantics of a linear scan when a kernel writes duplicates,
+     * <tt>numShadowed</tt> counts the valid entries that are not in the
+     * table, and removing an indexed entry looks for a replacement only when
+     * that count is nonzero. Since a page maps to exactly one set, a single
+     * table serves every set; it only holds entries written to the set of
+     * their page.
+     */
+    private class TLBIndex {
+	TLBIndex() {
+	    int capacity = 8;
+	    while (capacity < tlbSize*2)
+		capacity *= 2;
+
+	    keys = new int[capacity];
+	    values = new int[capacity];
+	    for (int i=0; i<capacity; i++)
+		values[i] = -1;
+	}
+
+	int get(int vpn) {
+	    for (int i=hash(vpn); values[i] >= 0; i=(i+1)&(keys.length-1)) {
+		if (keys[i] == vpn)
+		    return values[i];
+	    }
+	    return -1;
+	}
+
+	void add(int vpn, int number) {
+	    int i = hash(vpn);
+	    for (; values[i] >= 0; i=(i+1)&(keys.length-1)) {
+		if (keys[i] == vpn) {
+		    numShadowed++;
+		    if (number < values[i])
+			values[i] = number;
+		    return;
+		}
+	    }
+
+	    keys[i] = vpn;
+	    values[i] = number;
+	}
+
+	void remove(int vpn, int number) {
+	    int i = hash(vpn);
+	    while (keys[i] != vpn || values[i] < 0) {
+		Lib.assertTrue(values[i] >= 0);
+		i = (i+1)&(keys.length-1);
+	    }
+
+	    if (values[i] != number) {
+		// a shadowed duplicate is going away
+		numShadowed--;
+		return;
+	    }
+
+	    if (numShadowed > 0) {
+		int first = getTLBSet(vpn) * tlbWays;
+		for (int j=first; j<first+tlbWays; j++) {
+		    if (j != number && translations[j].valid &&
+			translations[j].vpn == vpn) {
+			numShadowed--;
+			values[i] = j;
+			return;
+		    }
+		}
+	    }
+
+	    // delete by shifting later entries of the probe run back
+	    int hole = i;
+	    for (int j=(hole+1)&(keys.length-1); values[j] >= 0;
+		 j=(j+1)&(keys.length-1)) {
+		int home = hash(keys[j]);
+		if (((j - home) & (keys.length-1)) >=
+		    ((j - hole) & (keys.length-1))) {
+		    keys[hole] = keys[j];
+		    values[hole] = values[j];
+		    hole = j;
+		}
+	    }
+	    values[hole] = -1;
+	}
+
+	private int hash(int vpn) {
+	    int h = vpn * 0x9E3779B9;
+	    return (h ^ (h >>> 16)) & (keys.length-1);
+	}
+
+	private int[] keys;
+	private int[] values;
+	private int numShadowed = 0;
+    }
+
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    invalidateMemos();
 	}
     }
 
@@ -593,6 +1045,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    invalidateMemos();
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -601,6 +1054,7 @@ public final class Processor {
 		return;
 	    
 	    exceptionHandler.run();
+	    invalidateMemos();
 	}
 
 	private boolean hasBadVAddr = false;
@@ -616,6 +1070,71 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Run as much of the basic block at the current PC as can complete
+	 * before the next interrupt is due, then account for all of its ticks
+	 * at once. If an instruction in the block causes an exception, the
+	 * instructions before it are accounted for and the exception is
+	 * handled exactly as <tt>run()</tt> would handle it.
+	 *
+	 * @return	<tt>true</tt> if at least one instruction was dispatched
+	 *		and its ticks accounted for; <tt>false</tt> if the caller
+	 *		should run the next instruction through
+	 *		<tt>run()</tt> instead.
+	 */
+	public boolean runBlock() {
+	    // the disassembler traces individual fetches, so don't batch them
+	    if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble) ||
+		Lib.test(dbgFullDisassemble))
+		return false;
+
+	    // the next tick makes an interrupt due, so it must not be batched
+	    long quiet = privilege.interrupt.userTicksBeforeDue();
+	    if (quiet == 0)
+		return false;
+
+	    int vaddr = registers[regPC];
+	    int executed = 0;
+
+	    try {
+		BasicBlock block = fetchBlock(vaddr);
+		int limit = (int) Math.min(block.instructions.length, quiet);
+
+		while (executed < limit) {
+		    DecodedInstruction next = block.instructions[executed];
+		    int paddr = block.paddr + executed*4;
+
+		    // a branch in the delay slot of a taken branch can leave
+		    // the block early
+		    if (registers[regPC] != vaddr + executed*4)
+			break;
+
+		    // the kernel may have replaced the code since the block
+		    // was built
+		    if (Lib.bytesToInt(mainMemory, paddr) != next.value) {
+			invalidateBlock(block.paddr);
+			break;
+		    }
+
+		    decoded = next;
+		    decode();
+		    execute();
+		    writeBack();
+		    executed++;
+		}
+	    }
+	    catch (MipsException e) {
+		privilege.interrupt.tickUser(executed);
+		e.handle();
+		privilege.interrupt.tick(false);
+		invalidateMemos();
+		return true;
+	    }
+
+	    privilege.interrupt.tickUser(executed);
+	    return (executed > 0);
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
@@ -626,78 +1145,45 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    decoded = fetchInstruction(registers[regPC]);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    // the fields that depend only on the instruction word were
+	    // resolved once, when the word was first decoded
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + decoded.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1538,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
+	DecodedInstruction decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1550,123 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on any register state.
+     */
+    private static class DecodedInstruction {
+	DecodedInstruction(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int extended = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = extended<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = extended & 0xFFFF;
+	    else
+		imm = extended;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target;
+	final int imm, branchOffset;
+	final int operation, format, flags;
+	final String name;
+	final int size, dstReg;
+    }
+
+    /**
+     * A straight-line run of decoded instructions within one physical page,
+     * ending with the delay slot of the first branch, with the first
+     * instruction that always traps, or at the end of the page.
+     */
+    private class BasicBlock {
+	BasicBlock(int paddr) {
+	    this.paddr = paddr;
+
+	    int end = (paddr/pageSize + 1) * pageSize;
+	    int length = 0;
+
+	    for (int a=paddr; a<end; a+=4) {
+		length++;
+
+		DecodedInstruction inst = decodeAt(a);
+
+		if (Lib.test(Mips.BRANCH, inst.flags)) {
+		    // include the delay slot, if it is on this page
+		    if (a+4 < end)
+			length++;
+		    break;
+		}
+
+		if (inst.operation == Mips.SYSCALL ||
+		    inst.operation == Mips.UNIMPL ||
+		    inst.operation == Mips.INVALID)
+		    break;
+	    }
+
+	    instructions = new DecodedInstruction[length];
+	    for (int i=0; i<length; i++)
+		instructions[i] = decodeAt(paddr + i*4);
+	}
+
+	private DecodedInstruction decodeAt(int paddr) {
+	    return decodeInstruction(paddr, Lib.bytesToInt(mainMemory, paddr));
+	}
+
+	/** The physical address of the first instruction in this block. */
+	final int paddr;
+	/** The instructions in this block, in order. */
+	final DecodedInstruction[] instructions;
+    }
+
     private static class Mips {
 	Mips() {
 	}
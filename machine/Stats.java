@@ -22,9 +22,14 @@ public final class Stats {
 			   + ", kernel " + kernelTicks
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
-			   + ", writes " + numDiskWrites);
+			   + ", writes " + numDiskWrites
+			   + ", tracks seeked " + numDiskSeekTracks);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
+	if (numCacheHits + numCacheMisses > 0) {
+	    System.out.println("Buffer cache: hits " + numCacheHits
+			       + ", misses " + numCacheMisses);
+	}
 	System.out.println("Paging: page faults " + numPageFaults
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
@@ -49,10 +54,16 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /** The total number of tracks the disk head has moved across. */
+    public long numDiskSeekTracks = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
     public int numConsoleWrites = 0;
+    /** The total number of file blocks found in the buffer cache. */
+    public int numCacheHits = 0;
+    /** The total number of file blocks not found in the buffer cache. */
+    public int numCacheMisses = 0;
     /** The total number of page faults that have occurred. */
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
@@ -76,7 +87,8 @@ public final class Stats {
      */
     public static final int RotationTime = 500;
     /**
-     * The amount of simulated time required for the disk to seek.
+     * The amount of simulated time required for the disk to seek from the
+     * first track to the last.
      */
     public static final int SeekTime = 500;
     /**
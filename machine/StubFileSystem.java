@@ -8,10 +8,18 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This class implements a file system that redirects all requests to the host
  * operating system's file system.
+ *
+ * <p>
+ * If <tt>FileSystem.mapFiles</tt> is set, files are mapped into memory
+ * rather than read and written through the host's system calls. The
+ * simulated time an access takes is the same either way.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,16 +32,21 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	mapFiles = Config.getBoolean("FileSystem.mapFiles", false);
     }
     
     public OpenFile open(String name, boolean truncate) {
 	if (!checkName(name))
 	    return null;
 	
-	delay();
+	delay(name, 0, 0, truncate);
 	    
 	try {
-	    return new StubOpenFile(name, truncate);
+	    if (mapFiles)
+		return new MappedOpenFile(name, truncate);
+	    else
+		return new StubOpenFile(name, truncate);
 	}
 	catch (IOException e) {
 	    return null;
@@ -44,7 +57,7 @@ public class StubFileSystem implements FileSystem {
 	if (!checkName(name))
 	    return false;
 
-	delay();
+	delay(name, 0, 0, true);
 
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
@@ -64,6 +77,35 @@ public class StubFileSystem implements FileSystem {
 	private File f;
     }
 
+    /**
+     * Wait as long as an operation on a file would take. Without a disk,
+     * every operation takes the same time. With one, each file is taken to
+     * lie in consecutive sectors starting at a sector chosen by its name,
+     * and the operation waits for the disk to access the sectors it covers,
+     * in the order the kernel's <tt>SynchDisk</tt> chooses. The access is
+     * counted as a disk read or write; opening a file reads it, and
+     * truncating or removing one writes it.
+     */
+    private void delay(String name, int pos, int length, boolean write) {
+	Disk disk = Machine.disk();
+	if (disk == null || ThreadedKernel.synchDisk == null) {
+	    delay();
+	    return;
+	}
+
+	int sectorSize = disk.getSectorSize();
+	int numSectors = disk.getNumSectors();
+	pos = Math.max(pos, 0);
+	length = Math.max(length, 0);
+
+	int first = (name.hashCode() & 0x7FFFFFFF) % numSectors;
+	int sector = (first + pos/sectorSize) % numSectors;
+	int count = (pos%sectorSize + length + sectorSize-1) / sectorSize;
+	count = Math.min(Math.max(count, 1), numSectors);
+
+	ThreadedKernel.synchDisk.access(sector, count, write);
+    }
+
     private void delay() {
 	long time = Machine.timer().getTime();
 	int amount = 1000;
@@ -76,7 +118,7 @@ public class StubFileSystem implements FileSystem {
 	    throws IOException {
 	    super(StubFileSystem.this, name);
 
-	    final File f = new File(directory, name);
+	    f = new File(directory, name);
 
 	    if (openCount == maxOpenFiles)
 		throw new IOException();
@@ -111,7 +153,7 @@ public class StubFileSystem implements FileSystem {
 		return -1;
 	    
 	    try {
-		delay();
+		delay(getName(), pos, length, false);
 
 		file.seek(pos);
 		return Math.max(0, file.read(buf, offset, length));
@@ -126,7 +168,7 @@ public class StubFileSystem implements FileSystem {
 		return -1;
 	    
 	    try {
-		delay();
+		delay(getName(), pos, length, true);
 		
 		file.seek(pos);
 		file.write(buf, offset, length);
@@ -146,6 +188,15 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
+	public long lastModified() {
+	    // by name, so that a file replaced on the host is noticed too
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { modified = f.lastModified(); }
+	    });
+
+	    return modified;
+	}
+
 	public void close() {
 	    if (open) {
 		open = false;
@@ -159,8 +210,104 @@ public class StubFileSystem implements FileSystem {
 	    }
 	}
 
-	private RandomAccessFile file = null;
-	private boolean open = false;
+	protected RandomAccessFile file = null;
+	protected boolean open = false;
+
+	private File f;
+	private long modified;
+    }
+
+    /**
+     * A file accessed through a mapping of the whole file. The mapping grows
+     * when a write extends the file, or when another open file has extended
+     * it and a read goes past the end of the mapping. It always covers
+     * exactly the file, so the host file's length is never padded.
+     */
+    private class MappedOpenFile extends StubOpenFile {
+	MappedOpenFile(String name, boolean truncate) throws IOException {
+	    super(name, truncate);
+
+	    try {
+		map(file.length());
+	    }
+	    catch (IOException e) {
+		super.close();
+		throw e;
+	    }
+	}
+
+	private void map(final long size) throws IOException {
+	    mapped = null;
+
+	    privilege.doPrivileged(new Runnable() {
+		public void run() { getMappedByteBuffer(size); }
+	    });
+
+	    if (mapped == null)
+		throw new IOException();
+
+	    map = mapped;
+	}
+
+	private void getMappedByteBuffer(long size) {
+	    try {
+		mapped = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+					       0, size);
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || length < 0)
+		return -1;
+
+	    try {
+		delay(getName(), pos, length, false);
+
+		if (pos+length > map.capacity() && file.length() > map.capacity())
+		    map(file.length());
+
+		int amount = Math.max(0, Math.min(length, map.capacity()-pos));
+
+		// a duplicate, so that concurrent accesses keep their own position
+		ByteBuffer region = map.duplicate();
+		region.position(Math.min(pos, map.capacity()));
+		region.get(buf, offset, amount);
+		return amount;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0 || length < 0)
+		return -1;
+
+	    try {
+		delay(getName(), pos, length, true);
+
+		if (pos+length > map.capacity())
+		    map(Math.max(pos+length, file.length()));
+
+		ByteBuffer region = map.duplicate();
+		region.position(pos);
+		region.put(buf, offset, length);
+		return length;
+	    }
+	    catch (IOException e) {
+		return -1;
+	    }
+	}
+
+	public void close() {
+	    map = null;
+
+	    super.close();
+	}
+
+	private MappedByteBuffer map, mapped;
     }
 
     private int openCount = 0;
@@ -168,6 +315,7 @@ public class StubFileSystem implements FileSystem {
     
     private Privilege privilege;
     private File directory;
+    private boolean mapFiles;
 
     private static boolean checkName(String name) {
 	char[] chars = name.toCharArray();
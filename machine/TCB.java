@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +16,26 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * The kind of JVM thread is selected by the <tt>TCB.backend</tt> key. The
+ * default, <tt>platform</tt>, gives each TCB an ordinary platform thread.
+ * <tt>virtual</tt> gives each TCB a virtual thread when the JVM provides
+ * them (Java 21 and later). Virtual threads are cheap to create and to
+ * block, so the limit on the number of started TCBs rises from
+ * <tt>maxThreads</tt> to <tt>maxVirtualThreads</tt>. On older JVMs it falls
+ * back to platform threads with small stacks, and the limit stays at
+ * <tt>maxThreads</tt>. Either limit can be overridden with the
+ * <tt>TCB.maxThreads</tt> key.
+ *
+ * <p>
+ * Control is handed from one TCB to the next with
+ * <tt>LockSupport.park()</tt>/<tt>unpark()</tt> on a volatile
+ * <tt>running</tt> flag. A waiting TCB first spins on the flag
+ * <tt>TCB.spinCount</tt> times. By default it spins only on multiprocessors.
+ * Setting <tt>TCB.handoff</tt> to <tt>monitor</tt> selects the original
+ * <tt>wait()</tt>/<tt>notify()</tt> handoff instead, for platform threads
+ * only.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +62,58 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String backend = Config.getString("TCB.backend", "platform");
+	if (backend.equals("virtual")) {
+	    useVirtualThreads = true;
+	    findVirtualThreadBuilder();
+	}
+	else {
+	    Lib.assertTrue(backend.equals("platform"),
+			   "unknown TCB backend: " + backend);
+	}
+
+	String handoff = Config.getString("TCB.handoff", "park");
+	if (handoff.equals("monitor")) {
+	    // virtual threads must not block in wait(), which pins their carrier
+	    Lib.assertTrue(!useVirtualThreads,
+			   "monitor handoff requires platform threads");
+	    useMonitorHandoff = true;
+	}
+	else {
+	    Lib.assertTrue(handoff.equals("park"),
+			   "unknown TCB handoff: " + handoff);
+	}
+
+	spinCount = Config.getInteger("TCB.spinCount",
+				      Runtime.getRuntime().availableProcessors()
+				      > 1 ? defaultSpinCount : 0);
+	Lib.assertTrue(spinCount >= 0);
+
+	// platform threads stand in for missing virtual threads, so they get
+	// the platform limit
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					unstarted != null ? maxVirtualThreads
+					: maxThreads);
+	Lib.assertTrue(threadLimit > 0);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt> reflectively,
+     * so that Nachos still builds and runs on JVMs without virtual threads.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    Method ofVirtual = Thread.class.getMethod("ofVirtual");
+	    virtualBuilder = ofVirtual.invoke(null);
+	    unstarted = Class.forName("java.lang.Thread$Builder")
+		.getMethod("unstarted", Runnable.class);
+	}
+	catch (Exception e) {
+	    System.out.print(" [no virtual threads, using platform threads]");
+	    virtualBuilder = null;
+	    unstarted = null;
+	}
     }
     
     /**
@@ -66,7 +140,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -94,7 +168,7 @@ public final class TCB {
 		};
 
 	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
+		    public void run() { javaThread = createJavaThread(tcbTarget); }
 		});
 
 	    /* The Java thread hasn't yet started, but we need to get it
@@ -207,6 +281,21 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    private Thread createJavaThread(Runnable target) {
+	if (!useVirtualThreads)
+	    return new Thread(target);
+
+	if (unstarted == null)
+	    return new Thread(null, target, "TCB", virtualStackSize);
+
+	try {
+	    return (Thread) unstarted.invoke(virtualBuilder, target);
+	}
+	catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
@@ -247,6 +336,15 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Virtual threads are daemon threads, so the JVM would exit under
+	     * them if the thread that started Nachos returned. It waits here
+	     * for Machine.halt() instead.
+	     */
+	    if (isFirstTCB && unstarted != null) {
+		while (true)
+		    LockSupport.park(this);
+	    }
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -280,14 +378,55 @@ public final class TCB {
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
-     * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
-     * TCB needs to go to wait for its turn to run. This includes the ping-pong
-     * process of starting and destroying TCBs, as well as in context switching
-     * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-     * is updated by <tt>contextSwitch()</tt> before we get called.
+     * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+     * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+     * for its turn to run. This includes the ping-pong process of starting
+     * and destroying TCBs, as well as in context switching from this TCB to
+     * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+     * <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Only the Java thread bound to this TCB ever waits on it, so a spurious
+     * return from <tt>park()</tt> just goes around the loop again.
      */
-    private synchronized void waitForInterrupt() {
+    private void waitForInterrupt() {
+	if (useMonitorHandoff) {
+	    waitForInterruptMonitor();
+	    return;
+	}
+
+	for (int i=0; i<spinCount; i++) {
+	    if (running)
+		return;
+	}
+
+	while (!running)
+	    LockSupport.park(this);
+    }
+
+    /**
+     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
+     * and unparking its Java thread. Used in the ping-pong process of
+     * starting and destroying TCBs, as well as in context switching to this
+     * TCB. Setting the flag before unparking means the wakeup cannot be lost:
+     * if the thread is not parked yet, it will either see the flag or find
+     * its permit already available.
+     */
+    private void interrupt() {
+	if (useMonitorHandoff) {
+	    interruptMonitor();
+	    return;
+	}
+
+	running = true;
+	LockSupport.unpark(javaThread);
+    }
+
+    /**
+     * The original handoff: waits on the monitor bound to this TCB until its
+     * <tt>running</tt> flag is set to <tt>true</tt>.
+     */
+    private synchronized void waitForInterruptMonitor() {
 	while (!running) {
 	    try { wait(); }
 	    catch (InterruptedException e) { }
@@ -295,12 +434,10 @@ public final class TCB {
     }
 
     /**
-     * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * The original handoff: sets this TCB's <tt>running</tt> flag and
+     * signals the monitor bound to it.
      */
-    private synchronized void interrupt() {
+    private synchronized void interruptMonitor() {
 	running = true;
 	notify();
     }
@@ -332,6 +469,32 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when using the <tt>virtual</tt> backend.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /**
+     * The stack size requested for each platform thread when the
+     * <tt>virtual</tt> backend runs on a JVM without virtual threads.
+     */
+    private static final long virtualStackSize = 256 * 1024;
+
+    private static boolean useVirtualThreads = false;
+    private static int threadLimit = maxThreads;
+    private static Object virtualBuilder = null;
+    private static Method unstarted = null;
+
+    /**
+     * The number of times a waiting TCB checks its <tt>running</tt> flag
+     * before parking, by default, on a multiprocessor.
+     */
+    private static final int defaultSpinCount = 1000;
+
+    private static boolean useMonitorHandoff = false;
+    private static int spinCount = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -388,7 +551,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -0,0 +1,34 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * An <tt>InterruptQueue</tt> kept in a red-black tree. This is the original
+ * implementation, kept for comparison.
+ */
+final class TreeInterruptQueue extends InterruptQueue {
+    boolean isEmpty() {
+	return pending.isEmpty();
+    }
+
+    long firstTime() {
+	return pending.isEmpty() ? Long.MAX_VALUE : pending.first().time;
+    }
+
+    Entry removeFirst() {
+	return pending.pollFirst();
+    }
+
+    void insert(Entry entry) {
+	pending.add(entry);
+    }
+
+    void collect(List<Entry> entries) {
+	entries.addAll(pending);
+    }
+
+    private TreeSet<Entry> pending = new TreeSet<Entry>();
+}
@@ -58,8 +58,17 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
+	// with interrupts disabled, no other thread can take the mail between
+	// the check and the removal
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (queues[port].isEmpty())
+	    ThreadedKernel.scheduler.waitingForIO(KThread.currentThread());
+
 	MailMessage mail = (MailMessage) queues[port].removeFirst();
 
+	Machine.interrupt().restore(intStatus);
+
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
 
@@ -178,11 +178,19 @@ public class NachosSecurityManager extends SecurityManager {
 	
 	// some permissions are strictly forbidden
 	if (perm instanceof RuntimePermission) {
-	    // no creating class loaders
+	    // no creating class loaders, except by the machine: reflection
+	    // defines accessor classes in a class loader of its own
 	    if (name.equals("createClassLoader"))
-		no(perm);
+		verifyPrivilege(perm);
 	}
 	
+	// the JDK starts the carrier threads of virtual threads (see TCB) on
+	// whichever thread first needs one, privileged or not
+	if (isCreatingCarrierThread()) {
+	    Lib.debug(dbgSecurity, "\tcarrier thread: " + name);
+	    return;
+	}
+
 	// allow the AWT mess when not grading
 	if (!fullySecure) {
 	    if (perm instanceof NetPermission) {
@@ -276,6 +284,19 @@ public class NachosSecurityManager extends SecurityManager {
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Return true if the JDK is creating a carrier thread, which runs
+     * virtual threads, further up the stack.
+     */
+    private boolean isCreatingCarrierThread() {
+	for (Class<?> c : getClassContext()) {
+	    if (c.getName().equals("jdk.internal.misc.CarrierThread"))
+		return true;
+	}
+
+	return false;
+    }
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the number of user ticks that can elapse before the next
+	 * pending interrupt becomes due. Simulated time can be advanced by up
+	 * to this many ticks with <tt>tickUser()</tt> without invoking any
+	 * interrupt handler.
+	 *
+	 * @return	the number of user ticks that can safely be batched.
+	 */
+	public long userTicksBeforeDue();
+
+	/**
+	 * Advance the simulated time by the specified number of user ticks at
+	 * once. Equivalent to calling <tt>tick(false)</tt> that many times,
+	 * provided no interrupt becomes due.
+	 *
+	 * @param	numTicks	the number of user ticks to advance. Must
+	 *				not exceed <tt>userTicksBeforeDue()</tt>.
+	 */
+	public void tickUser(long numTicks);
     }
 
     /**
@@ -0,0 +1,61 @@
+/* fork.c
+ *	Test program for fork(). The parent and the child each write to the
+ *	same global, to a page of the stack, and to a page that has been
+ *	swapped out, and must each see only their own writes.
+ *
+ *	Should return 0, and print a line for each process.
+ */
+
+#include "stdio.h"
+#include "stdlib.h"
+
+#define BigSize	(32*1024)	/* more than physical memory holds under
+				 * proj3, so the first pages get swapped out
+				 */
+
+int global = 1;
+char big[BigSize];
+
+int check(char *who, char *stack, int value)
+{
+  int ok = (global == value && stack[0] == value && big[0] == value
+	    && big[BigSize-1] == 1);
+
+  printf("%s: global %d, stack %d, big %d %d: %s\n", who, global, stack[0],
+	 big[0], big[BigSize-1], ok ? "ok" : "FAILED");
+
+  return ok;
+}
+
+int main()
+{
+  char stack[1024];
+  int i, pid, value, status;
+
+  stack[0] = 1;
+  for (i=0; i<BigSize; i++)
+    big[i] = 1;
+
+  pid = fork();
+  if (pid < 0) {
+    printf("fork failed\n");
+    return 1;
+  }
+
+  value = (pid == 0) ? 2 : 3;
+
+  global = value;
+  stack[0] = value;
+  big[0] = value;
+
+  if (pid == 0)
+    return check("child", stack, value) ? 0 : 1;
+
+  /* the child has written its copies by the time it is joined */
+  if (join(pid, &status) != 1 || status != 0) {
+    printf("child failed\n");
+    return 1;
+  }
+
+  return check("parent", stack, value) ? 0 : 1;
+}
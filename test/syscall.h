@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -109,6 +110,16 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process, with the
+ * same address space and registers. Both processes return from fork(): the
+ * child's pages are shared with the parent until either one writes to them.
+ *
+ * In the parent, returns the child process's process ID, which can be passed
+ * to join(). In the child, returns 0. On error, returns -1.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
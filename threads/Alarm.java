@@ -21,11 +21,10 @@ public class Alarm {
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() { timerInterrupt(); }
 		});
-		lock = new Lock();
 		this.waitQueue = new PriorityQueue<KThread>(10, new Comparator<KThread>(){
 			public int compare(KThread t0, KThread t1){
-				if(t0.time < t1.time) return 1;
-				if(t0.time > t1.time) return -1;
+				if(t0.time < t1.time) return -1;
+				if(t0.time > t1.time) return 1;
 				else return 0;
 			}
 		}
@@ -35,26 +34,20 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread
-	 * that should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every
+	 * sleeping thread whose time has come, then causes the current thread
+	 * to yield if the scheduler decides its time slice is over, forcing a
+	 * context switch if there is another thread that should be run.
 	 */
 	public void timerInterrupt() {
 		long currentTime = Machine.timer().getTime();
-		long wakeTime;
-		lock.acquire();
-		while(!waitQueue.isEmpty()){
-			KThread thread = waitQueue.poll();
-			wakeTime = thread.time;
-			if(wakeTime <= currentTime) thread.ready();
-			else {
-				waitQueue.offer(thread);
-				break;
-			}
 
-		}
-		lock.release();
+		// interrupts are disabled in an interrupt handler, so no lock
+		while(!waitQueue.isEmpty() && waitQueue.peek().time <= currentTime)
+			waitQueue.poll().ready();
 
+		if(ThreadedKernel.scheduler.timerInterrupt(KThread.currentThread()))
+			KThread.yield();
 	}
 
 	/**
@@ -72,17 +65,16 @@ public class Alarm {
 	 * @see	nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		long wakeTime = Machine.timer().getTime() + x;
+		boolean intStatus = Machine.interrupt().disable();
+
 		KThread currentThread = KThread.currentThread();
-		lock.acquire();
-		currentThread.time = wakeTime;
+		currentThread.time = Machine.timer().getTime() + x;
 		waitQueue.add(currentThread);
-		lock.release();
-		
-		KThread.yield();
 
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
 	}
-	private Lock lock;
+
 	private PriorityQueue<KThread> waitQueue;
 }
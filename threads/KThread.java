@@ -281,9 +281,7 @@ public class KThread {
 
 	Lib.assertTrue(this != currentThread);
 	joinLock.acquire();
-	if(this.status == statusFinished){
-		return;
-	} else {
+	if(this.status != statusFinished){
 		joinCV.sleep();
 	}
 	joinLock.release();
@@ -430,6 +428,18 @@ public class KThread {
 	//CommunicatorTest.runTest();
 
 	//AlarmTest.runTest();
+
+	//Uncomment below to test PriorityScheduler module
+	//PrioritySchedulerTest.runTest();
+
+	//Uncomment below to test LotteryScheduler module
+	//LotterySchedulerTest.runTest();
+
+	//Uncomment below to test MLFQScheduler module
+	//MLFQSchedulerTest.runTest();
+
+	//Uncomment below to measure context switch latency
+	//YieldBenchmark.runTest();
     }
 
     private static final char dbgThread = 't';
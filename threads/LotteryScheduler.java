@@ -42,7 +42,326 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long effective = getLotteryState(thread).effective;
+	return (int) Math.min(effective, priorityMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+		       
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	LotteryState state = getLotteryState(thread);
+	changeEffective(state, (long) priority - state.tickets);
+	state.tickets = priority;
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+		       
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * Add <tt>delta</tt> to the effective tickets of <tt>state</tt>, and
+     * carry the change along the chain of queues it waits on and the
+     * threads that own them. Each step costs O(log n) in the queue's ticket
+     * tree. A deadlocked cycle of donations is walked only once.
+     *
+     * @param	state	the thread whose effective tickets change.
+     * @param	delta	the change in effective tickets.
+     */
+    private void changeEffective(LotteryState state, long delta) {
+	long walk = ++numWalks;
+
+	while (state != null && delta != 0 && state.walk != walk) {
+	    state.walk = walk;
+	    state.effective += delta;
+
+	    LotteryQueue waitQueue = state.waiting;
+	    if (waitQueue == null)
+		break;
+
+	    waitQueue.adjust(state.slot, delta);
+	    if (!waitQueue.transferPriority)
+		break;
+
+	    state = waitQueue.owner;
+	}
+    }
+
+    private long numWalks = 0;
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     * The effective tickets of the waiting threads are kept in a Fenwick
+     * tree indexed by slot, so both drawing a winner and changing a
+     * thread's tickets take O(log n).
+     *
+     * <p>
+     * If the queue transfers priority, its owner's effective tickets include
+     * the sum of the effective tickets of all waiting threads.
+     */
+    protected class LotteryQueue extends ThreadQueue {
+	LotteryQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waiting == null);
+
+	    if (numFree == 0)
+		grow();
+
+	    state.waiting = this;
+	    state.slot = free[--numFree];
+	    slots[state.slot] = state;
+	    size++;
+
+	    adjust(state.slot, state.effective);
+	    if (transferPriority)
+		changeEffective(owner, state.effective);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.waiting == null);
+
+	    setOwner(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    setOwner(null);
+
+	    LotteryState winner = pickNextThread();
+	    if (winner == null)
+		return null;
+
+	    adjust(winner.slot, -winner.effective);
+	    slots[winner.slot] = null;
+	    free[numFree++] = winner.slot;
+	    size--;
+
+	    winner.waiting = null;
+	    setOwner(winner);
+
+	    return winner.thread;
+	}
+
+	/**
+	 * Hold the lottery, without modifying the state of this queue.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if no thread is
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (size == 0)
+		return null;
+
+	    long winning = (long) (Lib.random() * total);
+	    if (winning >= total)
+		winning = total-1;
+
+	    // find the first slot whose prefix sum exceeds the winning ticket
+	    int slot = 0;
+	    for (int step=capacity; step>0; step/=2) {
+		if (slot+step <= capacity && tree[slot+step] <= winning) {
+		    slot += step;
+		    winning -= tree[slot];
+		}
+	    }
+
+	    return slots[slot+1];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=1; i<=capacity; i++) {
+		if (slots[i] != null)
+		    System.out.print(" " + slots[i].thread +
+				     "(" + slots[i].effective + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add <tt>delta</tt> to the tickets held in <tt>slot</tt>.
+	 */
+	void adjust(int slot, long delta) {
+	    total += delta;
+
+	    for (int i=slot; i<=capacity; i+=i&-i)
+		tree[i] += delta;
+	}
+
+	/**
+	 * Make <tt>state</tt> the owner of this queue, moving any donated
+	 * tickets from the previous owner.
+	 *
+	 * @param	state	the new owner, or <tt>null</tt>.
+	 */
+	void setOwner(LotteryState state) {
+	    if (transferPriority)
+		changeEffective(owner, -total);
+
+	    owner = state;
+
+	    if (transferPriority)
+		changeEffective(owner, total);
+	}
+
+	/**
+	 * Double the number of slots, rebuilding the tree in linear time.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity = Math.max(capacity*2, 8);
+
+	    LotteryState[] oldSlots = slots;
+	    slots = new LotteryState[capacity+1];
+	    tree = new long[capacity+1];
+	    free = new int[capacity];
+	    numFree = 0;
+
+	    for (int i=1; i<=capacity; i++) {
+		if (i <= oldCapacity && oldSlots[i] != null) {
+		    slots[i] = oldSlots[i];
+		    tree[i] += slots[i].effective;
+		}
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+
+	    // hand out low slots first
+	    for (int i=capacity; i>oldCapacity; i--)
+		free[numFree++] = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	LotteryState owner = null;
+
+	/** The waiting threads, by slot, starting at slot 1. */
+	private LotteryState[] slots = new LotteryState[1];
+	/** The Fenwick tree over the effective tickets of each slot. */
+	private long[] tree = new long[1];
+	private int capacity = 0;
+	private int size = 0;
+	private long total = 0;
+
+	private int[] free = new int[0];
+	private int numFree = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under lottery scheduling.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The tickets held by the associated thread. */
+	protected int tickets = priorityDefault;
+	/** The tickets held plus the tickets donated to the thread. */
+	protected long effective = priorityDefault;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	LotteryQueue waiting = null;
+	/** The slot of this thread in <tt>waiting</tt>. */
+	int slot;
+	/** The last <tt>changeEffective()</tt> walk that visited this state. */
+	long walk = 0;
     }
 }
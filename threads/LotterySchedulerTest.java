@@ -0,0 +1,121 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.HashSet;
+
+/**
+ * A tester for the LotteryScheduler class. Like
+ * <tt>PrioritySchedulerTest</tt>, it drives the scheduler's thread queues
+ * directly with threads that are never forked.
+ */
+public class LotterySchedulerTest {
+    /**
+     * Tests whether this module is working.
+     */
+    public static void runTest() {
+	System.out.println("**** LotteryScheduler testing begins ****");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	testDonation();
+	testFairness();
+	testManyThreads();
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("**** LotteryScheduler testing ends ****");
+    }
+
+    private static KThread thread(String name, int tickets) {
+	KThread thread = new KThread().setName(name);
+	scheduler.setPriority(thread, tickets);
+	return thread;
+    }
+
+    /**
+     * Tickets add up through a chain of two locks, and follow the lock when
+     * it changes hands.
+     */
+    private static void testDonation() {
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	ThreadQueue plain = scheduler.newThreadQueue(false);
+
+	KThread low = thread("low", 1), mid = thread("mid", 2);
+	KThread a = thread("a", 5), b = thread("b", 3);
+	KThread other = thread("other", 100);
+
+	lock1.acquire(low);
+	lock2.acquire(mid);
+	plain.acquire(mid);
+
+	lock2.waitForAccess(low);
+	lock1.waitForAccess(a);
+	lock1.waitForAccess(b);
+	plain.waitForAccess(other);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 9);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 11);
+
+	scheduler.setPriority(a, 10);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 14);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 16);
+
+	KThread winner = lock1.nextThread();
+	KThread loser = (winner == a) ? b : a;
+	Lib.assertTrue(winner == a || winner == b);
+	Lib.assertTrue(scheduler.getEffectivePriority(winner) ==
+		       scheduler.getPriority(winner) +
+		       scheduler.getPriority(loser));
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 3);
+
+	Lib.assertTrue(lock1.nextThread() == loser);
+	Lib.assertTrue(scheduler.getEffectivePriority(winner) ==
+		       scheduler.getPriority(winner));
+	Lib.assertTrue(lock1.nextThread() == null);
+    }
+
+    /**
+     * A thread with three times the tickets wins about three times as often.
+     */
+    private static void testFairness() {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread rich = thread("rich", 3), poor = thread("poor", 1);
+	queue.waitForAccess(rich);
+	queue.waitForAccess(poor);
+
+	int richWins = 0;
+	for (int i=0; i<4000; i++) {
+	    KThread winner = queue.nextThread();
+	    if (winner == rich)
+		richWins++;
+	    queue.waitForAccess(winner);
+	}
+
+	Lib.assertTrue(richWins > 2800 && richWins < 3200);
+    }
+
+    /**
+     * Thousands of waiting threads each come out exactly once.
+     */
+    private static void testManyThreads() {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	HashSet<KThread> waiting = new HashSet<KThread>();
+
+	for (int i=0; i<3000; i++) {
+	    KThread thread = thread("t" + i, 1 + Lib.random(1000));
+	    waiting.add(thread);
+	    queue.waitForAccess(thread);
+	}
+
+	for (int i=0; i<3000; i++)
+	    Lib.assertTrue(waiting.remove(queue.nextThread()));
+
+	Lib.assertTrue(queue.nextThread() == null);
+    }
+
+    private static LotteryScheduler scheduler = new LotteryScheduler();
+}
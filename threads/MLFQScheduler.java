@@ -0,0 +1,231 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+import java.util.Iterator;
+
+/**
+ * A multi-level feedback queue scheduler. Threads are kept in one FIFO queue
+ * per level, and the next thread is always taken from the highest non-empty
+ * level (level 0).
+ *
+ * <p>
+ * Every thread starts at level 0. Each level has a time slice, counted in
+ * timer interrupts. A thread that uses up the time slice of its level is
+ * preempted and demoted one level, so CPU-bound threads sink. The time slice
+ * is charged across yields and sleeps, so a thread cannot stay at a level by
+ * giving up the processor just before its slice ends. A thread that waits
+ * for console or network I/O is promoted back to level 0. Every so often,
+ * all threads are boosted to level 0, so that threads that have sunk to the
+ * bottom are not starved forever.
+ *
+ * <p>
+ * The scheduler is configured with these keys:
+ * <ul>
+ * <li><tt>MLFQScheduler.quanta</tt>: a comma-separated list with the time
+ * slice of each level, in timer interrupts. Its length sets the number of
+ * levels. The default is <tt>1,2,4</tt>.
+ * <li><tt>MLFQScheduler.boostInterval</tt>: the number of timer interrupts
+ * between boosts, or 0 to never boost. The default is 100.
+ * </ul>
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	String[] slices =
+	    Config.getString("MLFQScheduler.quanta", "1,2,4").split(",");
+
+	quanta = new int[slices.length];
+	for (int i=0; i<slices.length; i++) {
+	    try {
+		quanta[i] = Integer.parseInt(slices[i].trim());
+	    }
+	    catch (NumberFormatException e) {
+		quanta[i] = 0;
+	    }
+	    Lib.assertTrue(quanta[i] > 0, "bad MLFQScheduler.quanta");
+	}
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 100);
+	Lib.assertTrue(boostInterval >= 0);
+    }
+
+    /**
+     * Allocate a new multi-level thread queue.
+     *
+     * @param	transferPriority	ignored. Threads do not donate their
+     *					level.
+     * @return	a new multi-level thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MultiLevelQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, where 0 is the highest
+     * level. Must be called with interrupts disabled.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the thread's level.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).getLevel();
+    }
+
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (boostInterval > 0 && ++timerInterrupts >= boostInterval) {
+	    timerInterrupts = 0;
+	    boostEpoch++;
+	}
+
+	ThreadState state = getThreadState(thread);
+	state.getLevel();
+
+	if (++state.used < quanta[state.level])
+	    return false;
+
+	state.used = 0;
+	if (state.level < quanta.length-1)
+	    state.level++;
+
+	return true;
+    }
+
+    public void waitingForIO(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	ThreadState state = getThreadState(thread);
+	state.level = 0;
+	state.used = 0;
+	state.epoch = boostEpoch;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState();
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO queue per level.
+     */
+    protected class MultiLevelQueue extends ThreadQueue {
+	@SuppressWarnings("unchecked")
+	MultiLevelQueue() {
+	    levels = (LinkedList<KThread>[]) new LinkedList<?>[quanta.length];
+	    for (int i=0; i<levels.length; i++)
+		levels[i] = new LinkedList<KThread>();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+	    levels[getThreadState(thread).getLevel()].add(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    applyBoost();
+	    for (int i=0; i<levels.length; i++) {
+		if (!levels[i].isEmpty())
+		    return levels[i].removeFirst();
+	    }
+
+	    return null;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.length; i++)
+		Lib.assertTrue(levels[i].isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.length; i++) {
+		for (Iterator<KThread> i2=levels[i].iterator(); i2.hasNext(); )
+		    System.out.print(i2.next() + "(" + i + ") ");
+	    }
+	}
+
+	/**
+	 * If there has been a boost since this queue last looked, move every
+	 * waiting thread to level 0, highest level first.
+	 */
+	private void applyBoost() {
+	    if (epoch == boostEpoch)
+		return;
+
+	    epoch = boostEpoch;
+	    for (int i=1; i<levels.length; i++) {
+		levels[0].addAll(levels[i]);
+		levels[i].clear();
+	    }
+	}
+
+	private LinkedList<KThread>[] levels;
+	private long epoch = boostEpoch;
+    }
+
+    /**
+     * The scheduling state of a thread: its level, and how much of that
+     * level's time slice it has used.
+     */
+    protected class ThreadState {
+	/**
+	 * Return the level of the associated thread, first applying any boost
+	 * that happened since it was last looked at.
+	 *
+	 * @return	the level of the associated thread.
+	 */
+	int getLevel() {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+	    }
+
+	    return level;
+	}
+
+	/** The level of the associated thread. */
+	int level = 0;
+	/** The timer interrupts charged against this level's time slice. */
+	int used = 0;
+	/** The boost this state last saw. */
+	long epoch = boostEpoch;
+    }
+
+    /** The time slice of each level, in timer interrupts. */
+    private int[] quanta;
+    /** The number of timer interrupts between boosts, or 0 for none. */
+    private int boostInterval;
+
+    private int timerInterrupts = 0;
+    /**
+     * Counts the boosts so far. Thread states and queues compare it with the
+     * last value they saw and apply missed boosts lazily, so a boost costs
+     * nothing up front.
+     */
+    private long boostEpoch = 0;
+}
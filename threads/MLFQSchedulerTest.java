@@ -0,0 +1,63 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A tester for the MLFQScheduler class. Like
+ * <tt>PrioritySchedulerTest</tt>, it drives the scheduler's thread queues
+ * directly with threads that are never forked, using the default time slices
+ * of 1, 2 and 4 timer interrupts.
+ */
+public class MLFQSchedulerTest {
+    /**
+     * Tests whether this module is working.
+     */
+    public static void runTest() {
+	System.out.println("**** MLFQScheduler testing begins ****");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	MLFQScheduler scheduler = new MLFQScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread cpu = new KThread().setName("cpu");
+	KThread io = new KThread().setName("io");
+
+	// level 0 slice is one interrupt, level 1 slice is two
+	Lib.assertTrue(scheduler.timerInterrupt(cpu));
+	Lib.assertTrue(scheduler.getLevel(cpu) == 1);
+	Lib.assertTrue(!scheduler.timerInterrupt(cpu));
+	Lib.assertTrue(scheduler.timerInterrupt(cpu));
+	Lib.assertTrue(scheduler.getLevel(cpu) == 2);
+
+	// the bottom level keeps round-robining
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(!scheduler.timerInterrupt(cpu));
+	Lib.assertTrue(scheduler.timerInterrupt(cpu));
+	Lib.assertTrue(scheduler.getLevel(cpu) == 2);
+
+	// higher levels go first
+	queue.waitForAccess(cpu);
+	queue.waitForAccess(io);
+	Lib.assertTrue(queue.nextThread() == io);
+	Lib.assertTrue(queue.nextThread() == cpu);
+
+	// waiting for I/O promotes back to the top
+	scheduler.waitingForIO(cpu);
+	Lib.assertTrue(scheduler.getLevel(cpu) == 0);
+
+	// a periodic boost lifts threads already waiting in a queue
+	Lib.assertTrue(scheduler.timerInterrupt(io));
+	Lib.assertTrue(scheduler.getLevel(io) == 1);
+	queue.waitForAccess(io);
+	for (int i=0; i<100; i++)
+	    scheduler.timerInterrupt(cpu);
+	queue.waitForAccess(cpu);
+	Lib.assertTrue(queue.nextThread() == io);
+	Lib.assertTrue(scheduler.getLevel(io) == 0);
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("**** MLFQScheduler testing ends ****");
+    }
+}
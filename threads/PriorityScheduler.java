@@ -72,8 +72,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMaximum)
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority+1);
 
@@ -87,8 +89,10 @@ public class PriorityScheduler extends Scheduler {
 	KThread thread = KThread.currentThread();
 
 	int priority = getPriority(thread);
-	if (priority == priorityMinimum)
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
 	    return false;
+	}
 
 	setPriority(thread, priority-1);
 
@@ -108,6 +112,21 @@ public class PriorityScheduler extends Scheduler {
      * The maximum priority that a thread can have. Do not change this value.
      */
     public static final int priorityMaximum = 7;    
+    /**
+     * The number of distinct priorities.
+     */
+    static final int numPriorities = priorityMaximum - priorityMinimum + 1;
+
+    /**
+     * Return the highest priority whose bit is set in <tt>bits</tt>, where
+     * bit <i>i</i> stands for priority <tt>priorityMinimum</tt>+<i>i</i>.
+     *
+     * @param	bits	a nonzero priority bitmap.
+     * @return	the highest priority in the bitmap.
+     */
+    static int highestPriority(int bits) {
+	return priorityMinimum + 31 - Integer.numberOfLeadingZeros(bits);
+    }
 
     /**
      * Return the scheduling state of the specified thread.
@@ -123,7 +142,15 @@ public class PriorityScheduler extends Scheduler {
     }
 
     /**
-     * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     * A <tt>ThreadQueue</tt> that sorts threads by priority. Waiting threads
+     * are kept in one FIFO bucket per effective priority, and a bitmap
+     * records which buckets are non-empty, so the next thread is found in
+     * constant time.
+     *
+     * <p>
+     * If the queue transfers priority, the highest effective priority among
+     * its waiting threads is donated to its owner. The donation is updated
+     * whenever that priority changes, rather than recomputed on demand.
      */
     protected class PriorityQueue extends ThreadQueue {
 	PriorityQueue(boolean transferPriority) {
@@ -142,8 +169,18 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		setOwner(null);
+		return null;
+	    }
+
+	    remove(next);
+	    next.waiting = null;
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +191,114 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (nonEmpty == 0)
+		return null;
+
+	    return head[highestPriority(nonEmpty) - priorityMinimum];
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int p=priorityMaximum; p>=priorityMinimum; p--) {
+		for (ThreadState s=head[p-priorityMinimum]; s!=null; s=s.next)
+		    System.out.print(" " + s.thread + "(" + p + ")");
+	    }
+	    System.out.println();
+	}
+
+	/**
+	 * Add a thread to the bucket for its effective priority. Threads are
+	 * kept in the order in which they started waiting, so a thread whose
+	 * priority changes while it waits keeps its place in line.
+	 *
+	 * @param	state	the waiting thread.
+	 */
+	void insert(ThreadState state) {
+	    int b = state.effectivePriority - priorityMinimum;
+
+	    ThreadState after = tail[b];
+	    while (after != null && after.waitNumber > state.waitNumber)
+		after = after.previous;
+
+	    state.previous = after;
+	    state.next = (after == null) ? head[b] : after.next;
+
+	    if (state.next == null)
+		tail[b] = state;
+	    else
+		state.next.previous = state;
+
+	    if (after == null)
+		head[b] = state;
+	    else
+		after.next = state;
+
+	    nonEmpty |= 1 << b;
+	}
+
+	/**
+	 * Remove a thread from the bucket for its effective priority.
+	 *
+	 * @param	state	the waiting thread.
+	 */
+	void remove(ThreadState state) {
+	    int b = state.effectivePriority - priorityMinimum;
+
+	    if (state.previous == null)
+		head[b] = state.next;
+	    else
+		state.previous.next = state.next;
+
+	    if (state.next == null)
+		tail[b] = state.previous;
+	    else
+		state.next.previous = state.previous;
+
+	    state.previous = state.next = null;
+
+	    if (head[b] == null)
+		nonEmpty &= ~(1 << b);
+	}
+
+	/**
+	 * Make <tt>state</tt> the owner of this queue, taking any donation
+	 * away from the previous owner.
+	 *
+	 * @param	state	the new owner, or <tt>null</tt>.
+	 */
+	void setOwner(ThreadState state) {
+	    if (owner != null && donation >= 0) {
+		ThreadState previousOwner = owner;
+		previousOwner.removeDonation(donation);
+		donation = -1;
+		owner = null;
+		previousOwner.updateEffectivePriority();
+	    }
+
+	    owner = state;
+	    updateDonation();
+	}
+
+	/**
+	 * Bring the priority donated to the owner up to date with the highest
+	 * effective priority of the waiting threads.
+	 */
+	void updateDonation() {
+	    int level = -1;
+	    if (transferPriority && owner != null && nonEmpty != 0)
+		level = highestPriority(nonEmpty);
+
+	    if (level == donation)
+		return;
+
+	    if (donation >= 0)
+		owner.removeDonation(donation);
+	    if (level >= 0)
+		owner.addDonation(level);
+	    donation = level;
+
+	    owner.updateEffectivePriority();
 	}
 
 	/**
@@ -168,12 +306,25 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, or <tt>null</tt>. */
+	ThreadState owner = null;
+	/** The priority donated to the owner, or -1 if none. */
+	int donation = -1;
+
+	/** Bit <i>i</i> is set if bucket <i>i</i> is non-empty. */
+	int nonEmpty = 0;
+	ThreadState[] head = new ThreadState[numPriorities];
+	ThreadState[] tail = new ThreadState[numPriorities];
+
+	/** The number of times a thread has waited on this queue. */
+	long numWaits = 0;
     }
 
     /**
-     * The scheduling state of a thread. This should include the thread's
-     * priority, its effective priority, any objects it owns, and the queue
-     * it's waiting for, if any.
+     * The scheduling state of a thread. This includes the thread's priority,
+     * its effective priority, the priorities donated to it by the queues it
+     * owns, and the queue it's waiting for, if any.
      *
      * @see	nachos.threads.KThread#schedulingState
      */
@@ -205,8 +356,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -219,8 +369,8 @@ public class PriorityScheduler extends Scheduler {
 		return;
 	    
 	    this.priority = priority;
-	    
-	    // implement me
+
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +386,12 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waiting == null);
+
+	    waiting = waitQueue;
+	    waitNumber = waitQueue.numWaits++;
+	    waitQueue.insert(this);
+	    waitQueue.updateDonation();
 	}
 
 	/**
@@ -250,12 +405,68 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(waiting == null);
+
+	    waitQueue.setOwner(this);
 	}	
 
+	/**
+	 * Recompute the effective priority from the priority and the
+	 * donations. If it changed while this thread waits on a queue, move
+	 * the thread to its new bucket, and pass the change on to that
+	 * queue's owner.
+	 */
+	void updateEffectivePriority() {
+	    int effective = priority;
+	    if (donations != 0)
+		effective = Math.max(effective, highestPriority(donations));
+
+	    if (effective == effectivePriority)
+		return;
+
+	    if (waiting == null) {
+		effectivePriority = effective;
+		return;
+	    }
+
+	    waiting.remove(this);
+	    effectivePriority = effective;
+	    waiting.insert(this);
+	    waiting.updateDonation();
+	}
+
+	void addDonation(int level) {
+	    int b = level - priorityMinimum;
+	    if (numDonations[b]++ == 0)
+		donations |= 1 << b;
+	}
+
+	void removeDonation(int level) {
+	    int b = level - priorityMinimum;
+	    Lib.assertTrue(numDonations[b] > 0);
+	    if (--numDonations[b] == 0)
+		donations &= ~(1 << b);
+	}
+
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
-	protected int priority;
+	protected int priority = -1;
+	/** The effective priority of the associated thread. */
+	protected int effectivePriority = -1;
+
+	/**
+	 * The number of owned queues donating each priority, and a bitmap of
+	 * the priorities with a nonzero count.
+	 */
+	int[] numDonations = new int[numPriorities];
+	int donations = 0;
+
+	/** The queue this thread is waiting on, or <tt>null</tt>. */
+	PriorityQueue waiting = null;
+	/** When this thread started waiting, in <tt>waiting.numWaits</tt>. */
+	long waitNumber;
+	/** The neighbours of this thread in its bucket of <tt>waiting</tt>. */
+	ThreadState previous = null, next = null;
     }
 }
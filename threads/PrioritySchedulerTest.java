@@ -0,0 +1,116 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A tester for the PriorityScheduler class. It drives the scheduler's thread
+ * queues directly with threads that are never forked, so it works whichever
+ * scheduler the kernel itself is using.
+ */
+public class PrioritySchedulerTest {
+    /**
+     * Tests whether this module is working.
+     */
+    public static void runTest() {
+	System.out.println("**** PriorityScheduler testing begins ****");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	testOrder();
+	testDonation();
+	testWaitOrderKept();
+
+	Machine.interrupt().restore(intStatus);
+
+	System.out.println("**** PriorityScheduler testing ends ****");
+    }
+
+    private static KThread thread(String name, int priority) {
+	KThread thread = new KThread().setName(name);
+	scheduler.setPriority(thread, priority);
+	return thread;
+    }
+
+    private static void expect(ThreadQueue queue, KThread[] order) {
+	for (int i=0; i<order.length; i++)
+	    Lib.assertTrue(queue.nextThread() == order[i]);
+	Lib.assertTrue(queue.nextThread() == null);
+    }
+
+    /**
+     * Highest priority first, first come first served within a priority.
+     */
+    private static void testOrder() {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread a = thread("a", 1), b = thread("b", 3);
+	KThread c = thread("c", 3), d = thread("d", 0);
+
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	queue.waitForAccess(c);
+	queue.waitForAccess(d);
+
+	expect(queue, new KThread[] { b, c, a, d });
+    }
+
+    /**
+     * Donation through a chain of two locks, kept up to date as the donor's
+     * priority changes and as the lock changes hands.
+     */
+    private static void testDonation() {
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+	ThreadQueue lock2 = scheduler.newThreadQueue(true);
+	ThreadQueue plain = scheduler.newThreadQueue(false);
+
+	KThread low = thread("low", 0), mid = thread("mid", 1);
+	KThread high = thread("high", 6), other = thread("other", 5);
+
+	lock1.acquire(low);
+	lock2.acquire(mid);
+	plain.acquire(mid);
+
+	lock2.waitForAccess(low);
+	lock1.waitForAccess(high);
+	plain.waitForAccess(other);
+
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 6);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 6);
+
+	scheduler.setPriority(high, 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 2);
+
+	Lib.assertTrue(lock1.nextThread() == high);
+	Lib.assertTrue(scheduler.getEffectivePriority(high) == 2);
+	Lib.assertTrue(scheduler.getEffectivePriority(low) == 0);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 1);
+
+	Lib.assertTrue(lock2.nextThread() == low);
+	Lib.assertTrue(scheduler.getEffectivePriority(mid) == 1);
+	Lib.assertTrue(plain.nextThread() == other);
+    }
+
+    /**
+     * A thread whose priority changes while waiting keeps its place among
+     * the threads of its priority.
+     */
+    private static void testWaitOrderKept() {
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+
+	KThread a = thread("a", 1), b = thread("b", 1), c = thread("c", 1);
+
+	queue.waitForAccess(a);
+	queue.waitForAccess(b);
+	queue.waitForAccess(c);
+
+	scheduler.setPriority(a, 4);
+	scheduler.setPriority(a, 1);
+	scheduler.setPriority(c, 4);
+	scheduler.setPriority(c, 1);
+
+	expect(queue, new KThread[] { a, b, c });
+    }
+
+    private static PriorityScheduler scheduler = new PriorityScheduler();
+}
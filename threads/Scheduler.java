@@ -154,4 +154,35 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Charge a timer interval to the specified thread, which was running
+     * when the timer interrupt arrived, and decide whether its time slice is
+     * over. Called by the alarm's timer interrupt handler, with interrupts
+     * disabled.
+     *
+     * <p>
+     * The default ends the time slice on every timer interrupt.
+     *
+     * @param	thread	the thread that was running.
+     * @return	<tt>true</tt> if the thread should yield the processor.
+     */
+    public boolean timerInterrupt(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
+    /**
+     * Notify the scheduler that the specified thread is about to wait for an
+     * I/O device, such as the console or the network. Schedulers that favor
+     * interactive threads can use this as a hint. May be called with
+     * interrupts enabled or disabled.
+     *
+     * <p>
+     * The default does nothing.
+     *
+     * @param	thread	the thread about to wait.
+     */
+    public void waitingForIO(KThread thread) {
+    }
 }
@@ -0,0 +1,259 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * Provides a synchronized interface to the machine's disk, and decides the
+ * order in which the disk serves the requests of concurrent threads.
+ *
+ * <p>
+ * A request blocks the calling thread until it is done. Pending requests
+ * wait here rather than in the disk, which is given one at a time, in C-SCAN
+ * order: the next request is the one with the lowest first sector at or
+ * after the end of the last one, and once there are none, the head goes back
+ * to the lowest pending sector. A request that continues or precedes a
+ * pending request of the same kind is merged into it, up to
+ * <tt>SynchDisk.maxMergeSectors</tt> sectors, so that the disk transfers
+ * both at once.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new <tt>SynchDisk</tt>.
+     *
+     * @param	disk	the underlying disk to use.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+
+	sectorSize = disk.getSectorSize();
+	maxMergeSectors = Config.getInteger("SynchDisk.maxMergeSectors",
+					    disk.getSectorsPerTrack());
+	Lib.assertTrue(maxMergeSectors > 0);
+
+	requestDone = new Runnable() {
+		public void run() { requestDone(); }
+	    };
+    }
+
+    /**
+     * Read a run of sectors into an array.
+     *
+     * @param	sector		the first sector to read.
+     * @param	count		the number of sectors to read.
+     * @param	data		the array to read into.
+     * @param	offset		the first byte of the array to fill.
+     */
+    public void readSectors(int sector, int count, byte[] data, int offset) {
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	request(new Request(READ, sector, count, data, offset));
+    }
+
+    /**
+     * Write a run of sectors from an array.
+     *
+     * @param	sector		the first sector to write.
+     * @param	count		the number of sectors to write.
+     * @param	data		the array to write from.
+     * @param	offset		the first byte of the array to write.
+     */
+    public void writeSectors(int sector, int count, byte[] data, int offset) {
+	Lib.assertTrue(offset >= 0 && offset+count*sectorSize <= data.length);
+
+	request(new Request(WRITE, sector, count, data, offset));
+    }
+
+    /**
+     * Wait as long as reading or writing a run of sectors would, without
+     * transferring any data. See <tt>Disk.access()</tt>.
+     *
+     * @param	sector		the first sector.
+     * @param	count		the number of sectors.
+     * @param	write		<tt>true</tt> to count the access as a write.
+     */
+    public void access(int sector, int count, boolean write) {
+	request(new Request(write ? WRITE_ACCESS : READ_ACCESS, sector, count,
+			    null, 0));
+    }
+
+    private void request(Request request) {
+	Lib.assertTrue(request.sector >= 0 && request.count > 0);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (!merge(request)) {
+	    Batch batch = new Batch(request.type, request.sector,
+				    request.count);
+	    batch.requests.add(request);
+	    pending.add(batch);
+	}
+
+	if (current == null)
+	    dispatch();
+
+	ThreadedKernel.scheduler.waitingForIO(KThread.currentThread());
+	request.done.P();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Add a request to a pending batch of the same kind that it continues or
+     * precedes.
+     *
+     * @return	<tt>true</tt> if the request was merged.
+     */
+    private boolean merge(Request request) {
+	// the run of an access may wrap around the end of the disk
+	if (request.sector + request.count > disk.getNumSectors())
+	    return false;
+
+	for (Batch batch : pending) {
+	    if (batch.type != request.type ||
+		batch.count + request.count > maxMergeSectors ||
+		batch.sector + batch.count > disk.getNumSectors())
+		continue;
+
+	    if (batch.sector + batch.count == request.sector) {
+		batch.requests.addLast(request);
+	    }
+	    else if (request.sector + request.count == batch.sector) {
+		batch.requests.addFirst(request);
+		batch.sector = request.sector;
+	    }
+	    else {
+		continue;
+	    }
+
+	    batch.count += request.count;
+
+	    Lib.debug(dbgDisk, "merged sector " + request.sector + " x"
+		      + request.count + " into " + batch.sector + " x"
+		      + batch.count);
+	    return true;
+	}
+
+	return false;
+    }
+
+    /**
+     * Give the disk the next pending batch in C-SCAN order.
+     */
+    private void dispatch() {
+	Lib.assertTrue(current == null && !pending.isEmpty());
+
+	Batch next = null, lowest = null;
+	for (Batch batch : pending) {
+	    if (lowest == null || batch.sector < lowest.sector)
+		lowest = batch;
+	    if (batch.sector >= headSector &&
+		(next == null || batch.sector < next.sector))
+		next = batch;
+	}
+	if (next == null)
+	    next = lowest;
+
+	pending.remove(next);
+	current = next;
+	headSector = next.sector + next.count;
+
+	// a batch of one request transfers straight to and from its array
+	if (next.requests.size() == 1) {
+	    Request request = next.requests.getFirst();
+	    next.data = request.data;
+	    next.offset = request.offset;
+	}
+	else if (next.type == READ || next.type == WRITE) {
+	    next.data = new byte[next.count*sectorSize];
+	    next.offset = 0;
+
+	    if (next.type == WRITE) {
+		int offset = 0;
+		for (Request request : next.requests) {
+		    System.arraycopy(request.data, request.offset,
+				     next.data, offset, request.count*sectorSize);
+		    offset += request.count*sectorSize;
+		}
+	    }
+	}
+
+	if (next.type == READ)
+	    disk.readSectors(next.sector, next.count, next.data, next.offset,
+			     requestDone);
+	else if (next.type == WRITE)
+	    disk.writeSectors(next.sector, next.count, next.data, next.offset,
+			      requestDone);
+	else
+	    disk.access(next.sector, next.count, next.type == WRITE_ACCESS,
+			requestDone);
+    }
+
+    private void requestDone() {
+	Batch batch = current;
+	current = null;
+
+	int offset = 0;
+	for (Request request : batch.requests) {
+	    if (batch.type == READ && batch.data != request.data) {
+		System.arraycopy(batch.data, offset,
+				 request.data, request.offset,
+				 request.count*sectorSize);
+	    }
+	    offset += request.count*sectorSize;
+
+	    request.done.V();
+	}
+
+	if (!pending.isEmpty())
+	    dispatch();
+    }
+
+    private static class Request {
+	Request(int type, int sector, int count, byte[] data, int offset) {
+	    this.type = type;
+	    this.sector = sector;
+	    this.count = count;
+	    this.data = data;
+	    this.offset = offset;
+	}
+
+	int type;
+	int sector, count;
+	byte[] data;
+	int offset;
+	Semaphore done = new Semaphore(0);
+    }
+
+    /** Requests for consecutive sectors, served by one disk request. */
+    private static class Batch {
+	Batch(int type, int sector, int count) {
+	    this.type = type;
+	    this.sector = sector;
+	    this.count = count;
+	}
+
+	int type;
+	int sector, count;
+	/** The requests, in sector order. */
+	LinkedList<Request> requests = new LinkedList<Request>();
+	byte[] data;
+	int offset;
+    }
+
+    private static final int READ = 0, WRITE = 1;
+    private static final int READ_ACCESS = 2, WRITE_ACCESS = 3;
+
+    private Disk disk;
+    private int sectorSize;
+    private int maxMergeSectors;
+    private Runnable requestDone;
+
+    private LinkedList<Batch> pending = new LinkedList<Batch>();
+    private Batch current = null;
+    /** The sector after the last one given to the disk. */
+    private int headSector = 0;
+
+    private static final char dbgDisk = 'd';
+}
@@ -50,6 +50,20 @@ public class SynchList {
 	return o;
     }
 
+    /**
+     * Return true if the queue is empty, so that <tt>removeFirst()</tt>
+     * would block.
+     *
+     * @return	<tt>true</tt> if the queue is empty.
+     */
+    public boolean isEmpty() {
+	lock.acquire();
+	boolean empty = list.isEmpty();
+	lock.release();
+
+	return empty;
+    }
+
     private static class PingTest implements Runnable {
 	PingTest(SynchList ping, SynchList pong) {
 	    this.ping = ping;
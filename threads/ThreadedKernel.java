@@ -15,7 +15,8 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Initialize this kernel. Creates a scheduler, the first thread, and an
-     * alarm, and enables interrupts. Creates a file system if necessary.   
+     * alarm, and enables interrupts. Creates a file system if necessary, and
+     * a <tt>SynchDisk</tt> if the machine has a disk.
      */
     public void initialize(String[] args) {
 	// set scheduler
@@ -36,12 +37,16 @@ public class ThreadedKernel extends Kernel {
 
 	alarm  = new Alarm();
 
+	if (Machine.disk() != null)
+	    synchDisk = new SynchDisk(Machine.disk());
+
 	Machine.interrupt().enable();
     }
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the
+     * <tt>NachosFileSystem</tt> if it is the file system. Note that the
      * autograder never calls this method, so it is safe to put additional
      * tests here.
      */	
@@ -52,6 +57,7 @@ public class ThreadedKernel extends Kernel {
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
+	nachos.filesys.NachosFileSystem.selfTest();
     }
     
     /**
@@ -74,6 +80,8 @@ public class ThreadedKernel extends Kernel {
     public static Alarm alarm = null;
     /** Globally accessible reference to the file system. */
     public static FileSystem fileSystem = null;
+    /** Globally accessible reference to the disk, if there is one. */
+    public static SynchDisk synchDisk = null;
 
     // dummy variables to make javac smarter
     private static RoundRobinScheduler dummy1 = null;
@@ -83,4 +91,5 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static nachos.filesys.NachosFileSystem dummy8 = null;
 }
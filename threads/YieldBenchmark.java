@@ -0,0 +1,87 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A latency benchmark for context switching. Two threads ping-pong, first
+ * through <tt>KThread.yield()</tt> and then through a pair of semaphores, as
+ * in <tt>Semaphore.selfTest()</tt>. Each round trip is two context switches,
+ * so its wall-clock cost is dominated by the <tt>TCB</tt> handoff.
+ *
+ * <p>
+ * To compare the handoff implementations, run it once with
+ * <tt>TCB.handoff = monitor</tt> and once with the default
+ * <tt>TCB.handoff = park</tt>, optionally varying <tt>TCB.spinCount</tt>.
+ */
+public class YieldBenchmark {
+    /**
+     * Run the benchmark and print the cost of each kind of round trip.
+     */
+    public static void runTest() {
+	System.out.println("**** YieldBenchmark begins ****");
+
+	// the first pass warms up the JIT
+	for (int pass=0; pass<2; pass++) {
+	    long yieldNs = yieldRoundTrip(roundTrips);
+	    long semaphoreNs = semaphoreRoundTrip(roundTrips);
+
+	    if (pass > 0) {
+		System.out.println("yield round trip: " + yieldNs/roundTrips
+				   + " ns");
+		System.out.println("semaphore round trip: "
+				   + semaphoreNs/roundTrips + " ns");
+	    }
+	}
+
+	System.out.println("**** YieldBenchmark ends ****");
+    }
+
+    private static long yieldRoundTrip(final int n) {
+	final boolean[] done = new boolean[1];
+
+	KThread partner = new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<n; i++)
+			KThread.yield();
+		    done[0] = true;
+		}
+	    }).setName("yield partner");
+
+	partner.fork();
+	// let the partner start, so it is ready when the timing begins
+	KThread.yield();
+
+	long start = System.nanoTime();
+	for (int i=0; i<n; i++)
+	    KThread.yield();
+	long elapsed = System.nanoTime() - start;
+
+	while (!done[0])
+	    KThread.yield();
+
+	return elapsed;
+    }
+
+    private static long semaphoreRoundTrip(final int n) {
+	final Semaphore ping = new Semaphore(0);
+	final Semaphore pong = new Semaphore(0);
+
+	new KThread(new Runnable() {
+		public void run() {
+		    for (int i=0; i<n; i++) {
+			ping.P();
+			pong.V();
+		    }
+		}
+	    }).setName("semaphore partner").fork();
+
+	long start = System.nanoTime();
+	for (int i=0; i<n; i++) {
+	    ping.V();
+	    pong.P();
+	}
+	return System.nanoTime() - start;
+    }
+
+    private static final int roundTrips = 20000;
+}
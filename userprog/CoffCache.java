@@ -0,0 +1,211 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A cache of parsed executables, so that running a program again does not
+ * read and check its headers again. Processes running the same executable
+ * share one <tt>Coff</tt>, which stays open while any of them uses it; up to
+ * <tt>UserKernel.coffCacheSize</tt> executables nobody is using are kept
+ * open as well, and the least recently used one is closed to make room.
+ *
+ * <p>
+ * The kernel calls <tt>invalidate()</tt> whenever it writes, creates or
+ * removes a file. An executable changed from outside Nachos is noticed when
+ * it is next opened, by its length or by the time the host says it was last
+ * modified; a file system that cannot tell that time only has the length to
+ * go by.
+ */
+public class CoffCache {
+    /**
+     * Allocate a new cache.
+     *
+     * @param	capacity	the number of unused executables to keep.
+     */
+    public CoffCache(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+    }
+
+    /**
+     * Return the parsed executable in the specified file, opening and
+     * parsing it only if it is not cached. Must be matched by a call to
+     * <tt>release()</tt>.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	the executable, or <tt>null</tt> if it could not be opened.
+     */
+    public Coff open(String name) {
+	lock.acquire();
+
+	Entry entry = byName.get(name);
+	if (entry != null && !entry.isCurrent()) {
+	    Lib.debug(dbgCoffCache, "changed " + name);
+	    forget(name);
+	    entry = null;
+	}
+
+	if (entry != null) {
+	    Lib.debug(dbgCoffCache, "hit " + name);
+	}
+	else {
+	    Lib.debug(dbgCoffCache, "miss " + name);
+
+	    OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
+	    Coff coff = load(executable);
+	    if (coff != null) {
+		entry = new Entry(name, coff, executable);
+		byName.put(name, entry);
+		byCoff.put(coff, entry);
+	    }
+	}
+
+	Coff coff = null;
+	if (entry != null) {
+	    entry.users++;
+	    coff = entry.coff;
+	}
+
+	lock.release();
+
+	return coff;
+    }
+
+    private Coff load(OpenFile executable) {
+	if (executable == null)
+	    return null;
+
+	try {
+	    return new Coff(executable);
+	}
+	catch (EOFException e) {
+	    executable.close();
+	    return null;
+	}
+    }
+
+    /**
+     * Release an executable returned by <tt>open()</tt>. An executable
+     * nobody is using is kept if there is room, and closed otherwise.
+     *
+     * @param	coff	the executable.
+     */
+    public void release(Coff coff) {
+	lock.acquire();
+
+	Entry entry = byCoff.get(coff);
+	Lib.assertTrue(entry != null && entry.users > 0);
+
+	if (--entry.users == 0) {
+	    if (byName.get(entry.name) != entry) {
+		// invalidated while in use
+		byCoff.remove(coff);
+		coff.close();
+	    }
+	    else {
+		// move to the most recently used end
+		byName.remove(entry.name);
+		byName.put(entry.name, entry);
+		trim();
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Forget the executable in a file that has been changed or removed. It
+     * is closed once nobody is using it.
+     *
+     * @param	name	the name of the file.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	if (byName.containsKey(name)) {
+	    Lib.debug(dbgCoffCache, "invalidate " + name);
+	    forget(name);
+	}
+
+	lock.release();
+    }
+
+    private void forget(String name) {
+	Entry entry = byName.remove(name);
+	if (entry != null && entry.users == 0) {
+	    byCoff.remove(entry.coff);
+	    entry.coff.close();
+	}
+    }
+
+    /**
+     * Close the least recently used unused executables until no more than
+     * <tt>capacity</tt> are left.
+     */
+    private void trim() {
+	int unused = 0;
+	for (Entry entry : byName.values()) {
+	    if (entry.users == 0)
+		unused++;
+	}
+
+	Iterator<Entry> i = byName.values().iterator();
+	while (unused > capacity && i.hasNext()) {
+	    Entry entry = i.next();
+	    if (entry.users == 0) {
+		i.remove();
+		byCoff.remove(entry.coff);
+		entry.coff.close();
+		unused--;
+	    }
+	}
+    }
+
+    private static class Entry {
+	Entry(String name, Coff coff, OpenFile executable) {
+	    this.name = name;
+	    this.coff = coff;
+	    this.executable = executable;
+
+	    length = executable.length();
+	    modified = executable.lastModified();
+	}
+
+	/**
+	 * Test whether the file still looks as it did when it was loaded.
+	 *
+	 * @return	<tt>true</tt> if the length and the modification time
+	 *		are unchanged.
+	 */
+	boolean isCurrent() {
+	    return executable.length() == length
+		&& executable.lastModified() == modified;
+	}
+
+	String name;
+	Coff coff;
+	/** The file the executable was loaded from, and how it looked. */
+	OpenFile executable;
+	int length;
+	long modified;
+	/** The number of processes using the executable. */
+	int users = 0;
+    }
+
+    private int capacity;
+    private Lock lock = new Lock();
+    /** The cached executables, least recently released first. */
+    private LinkedHashMap<String, Entry> byName =
+	new LinkedHashMap<String, Entry>();
+    private HashMap<Coff, Entry> byCoff = new HashMap<Coff, Entry>();
+
+    private static final char dbgCoffCache = 'c';
+}
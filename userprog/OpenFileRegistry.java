@@ -0,0 +1,147 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * The files open in every user process. Counts the file descriptors
+ * referring to each open file, so that a file shared by forked processes is
+ * closed only when its last descriptor is, and the descriptors open on each
+ * file name, so that a file unlinked while it is open is removed only once
+ * nobody has it open.
+ *
+ * <p>
+ * While an unlinked file is still open, it cannot be opened again.
+ */
+class OpenFileRegistry {
+    /**
+     * Allocate a new registry.
+     */
+    OpenFileRegistry() {
+    }
+
+    /**
+     * Open a file on <tt>ThreadedKernel.fileSystem</tt>.
+     *
+     * @param	name	the name of the file.
+     * @param	create	<tt>true</tt> to create the file if it does not
+     *			exist.
+     * @return	the open file, or <tt>null</tt> if it could not be opened.
+     */
+    OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	OpenFile file = null;
+	if (!unlinked.contains(name)) {
+	    // the file system truncates what it creates, so look first
+	    file = ThreadedKernel.fileSystem.open(name, false);
+	    if (file == null && create) {
+		file = ThreadedKernel.fileSystem.open(name, true);
+		UserKernel.coffCache.invalidate(name);
+	    }
+
+	    if (file != null) {
+		references.put(file, 1);
+
+		Integer count = nameCounts.get(name);
+		nameCounts.put(name, (count == null) ? 1 : count+1);
+	    }
+	}
+
+	lock.release();
+
+	return file;
+    }
+
+    /**
+     * Add a descriptor referring to a file that is already open, such as a
+     * descriptor inherited by a forked process.
+     *
+     * @param	file	the open file.
+     */
+    void share(OpenFile file) {
+	lock.acquire();
+
+	Integer count = references.get(file);
+	references.put(file, (count == null) ? 2 : count+1);
+
+	lock.release();
+    }
+
+    /**
+     * Drop a descriptor referring to a file. The file is closed when its last
+     * descriptor goes, and removed if it was unlinked and nobody else has it
+     * open.
+     *
+     * @param	file	the open file.
+     */
+    void close(OpenFile file) {
+	lock.acquire();
+
+	// a file not opened here, like the console, has a single descriptor
+	Integer count = references.get(file);
+	if (count != null && count > 1) {
+	    references.put(file, count-1);
+	    lock.release();
+	    return;
+	}
+	references.remove(file);
+
+	file.close();
+
+	String name = file.getName();
+	Integer nameCount = nameCounts.get(name);
+	if (count != null && nameCount != null) {
+	    if (nameCount > 1) {
+		nameCounts.put(name, nameCount-1);
+	    }
+	    else {
+		nameCounts.remove(name);
+		if (unlinked.remove(name))
+		    ThreadedKernel.fileSystem.remove(name);
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Remove a file, or arrange for it to be removed once the last process
+     * that has it open closes it.
+     *
+     * @param	name	the name of the file.
+     * @return	<tt>true</tt> if the file was or will be removed.
+     */
+    boolean unlink(String name) {
+	lock.acquire();
+
+	UserKernel.coffCache.invalidate(name);
+
+	boolean success;
+	if (nameCounts.containsKey(name)) {
+	    unlinked.add(name);
+	    success = true;
+	}
+	else {
+	    success = ThreadedKernel.fileSystem.remove(name);
+	}
+
+	lock.release();
+
+	return success;
+    }
+
+    private Lock lock = new Lock();
+    /** The number of descriptors referring to each file opened here. */
+    private HashMap<OpenFile, Integer> references =
+	new HashMap<OpenFile, Integer>();
+    /** The number of open files of each name. */
+    private HashMap<String, Integer> nameCounts =
+	new HashMap<String, Integer>();
+    /** The names unlinked while open. */
+    private HashSet<String> unlinked = new HashSet<String>();
+}
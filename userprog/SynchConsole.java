@@ -42,6 +42,9 @@ public class SynchConsole {
 	readLock.acquire();
 
 	if (block || charAvailable) {
+	    if (!charAvailable)
+		ThreadedKernel.scheduler.waitingForIO(KThread.currentThread());
+
 	    charAvailable = false;
 	    readWait.P();
 
@@ -77,8 +80,24 @@ public class SynchConsole {
      * @param	value	the byte to be sent (the upper 24 bits are ignored).
      */
     public void writeByte(int value) {
+	writeByte(value, true);
+    }
+
+    /**
+     * Send a byte, blocking until the send is complete.
+     *
+     * @param	value	the byte to be sent.
+     * @param	boost	<tt>true</tt> to tell the scheduler that the thread is
+     *			waiting for I/O. A write of many bytes tells it only
+     *			once, so that printing does not keep a thread at the
+     *			top level.
+     */
+    private void writeByte(int value, boolean boost) {
 	writeLock.acquire();
 	console.writeByte(value);
+	// the send completes in a later interrupt, so this always waits
+	if (boost)
+	    ThreadedKernel.scheduler.waitingForIO(KThread.currentThread());
 	writeWait.P();
 	writeLock.release();
     }
@@ -137,7 +156,7 @@ public class SynchConsole {
 		return 0;
 	    
 	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+		SynchConsole.this.writeByte(buf[offset+i], i == 0);
 	    
 	    return length;
 	}
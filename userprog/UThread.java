@@ -25,6 +25,7 @@ public class UThread extends KThread {
     }
 
     private void runProgram() {
+	process.loadPages();
 	process.initRegisters();
 	process.restoreState();
 
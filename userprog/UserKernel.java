@@ -4,6 +4,8 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple user processes.
  */
@@ -16,13 +18,22 @@ public class UserKernel extends ThreadedKernel {
     }
 
     /**
-     * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * Initialize this kernel. Creates a synchronized console, the list of
+     * free physical pages, the open-file registry and the executable cache,
+     * and sets the processor's exception handler.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
+
+	pageLock = new Lock();
+	for (int ppn=0; ppn<Machine.processor().getNumPhysPages(); ppn++)
+	    freePages.add(ppn);
+
+	openFiles = new OpenFileRegistry();
+	coffCache = new CoffCache(Config.getInteger("UserKernel.coffCacheSize",
+						    4));
 	
 	Machine.processor().setExceptionHandler(new Runnable() {
 		public void run() { exceptionHandler(); }
@@ -61,6 +72,39 @@ public class UserKernel extends ThreadedKernel {
 	return ((UThread) KThread.currentThread()).process;
     }
 
+    /**
+     * Allocate physical pages.
+     *
+     * @param	numPages	the number of pages to allocate.
+     * @return	the physical page numbers, or <tt>null</tt> if there are not
+     *		enough free pages.
+     */
+    public static int[] allocatePages(int numPages) {
+	pageLock.acquire();
+
+	int[] ppns = null;
+	if (numPages <= freePages.size()) {
+	    ppns = new int[numPages];
+	    for (int i=0; i<numPages; i++)
+		ppns[i] = freePages.removeFirst();
+	}
+
+	pageLock.release();
+
+	return ppns;
+    }
+
+    /**
+     * Release a physical page allocated by <tt>allocatePages()</tt>.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public static void freePage(int ppn) {
+	pageLock.acquire();
+	freePages.add(ppn);
+	pageLock.release();
+    }
+
     /**
      * The exception handler. This handler is called by the processor whenever
      * a user instruction causes a processor exception.
@@ -110,6 +154,14 @@ public class UserKernel extends ThreadedKernel {
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
+    /** The files open in every process. */
+    static OpenFileRegistry openFiles;
+    /** The parsed executables. */
+    public static CoffCache coffCache;
+
+    private static Lock pageLock;
+    private static LinkedList<Integer> freePages = new LinkedList<Integer>();
+
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
 }
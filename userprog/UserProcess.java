@@ -4,7 +4,7 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
+import java.util.HashMap;
 
 /**
  * Encapsulates the state of a user process that is not contained in its
@@ -23,6 +23,11 @@ public class UserProcess {
      * Allocate a new process.
      */
     public UserProcess() {
+	processID = nextProcessID++;
+
+	openFiles[0] = UserKernel.console.openForReading();
+	openFiles[1] = UserKernel.console.openForWriting();
+
 	int numPhysPages = Machine.processor().getNumPhysPages();
 	pageTable = new TranslationEntry[numPhysPages];
 	for (int i=0; i<numPhysPages; i++)
@@ -51,12 +56,28 @@ public class UserProcess {
     public boolean execute(String name, String[] args) {
 	if (!load(name, args))
 	    return false;
+
+	started();
 	
 	new UThread(this).setName(name).fork();
 
 	return true;
     }
 
+    /**
+     * Count this process as running. The first process to run is the root
+     * process.
+     */
+    private void started() {
+	processLock.acquire();
+
+	if (rootProcess == null)
+	    rootProcess = this;
+	numRunning++;
+
+	processLock.release();
+    }
+
     /**
      * Save the state of this process in preparation for a context switch.
      * Called by <tt>UThread.saveState()</tt>.
@@ -131,16 +152,7 @@ public class UserProcess {
 				 int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
-
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(memory, vaddr, data, offset, amount);
-
-	return amount;
+	return transfer(vaddr, length, new ArrayCopier(data, offset, false));
     }
 
     /**
@@ -174,23 +186,247 @@ public class UserProcess {
 				  int length) {
 	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
+	return transfer(vaddr, length, new ArrayCopier(data, offset, true));
+    }
+
+    /**
+     * Transfer data from this process's virtual memory straight to a file,
+     * without staging it in a buffer. Physically contiguous pages are
+     * written with a single call.
+     *
+     * @param	file	the file to write, at its current position.
+     * @param	vaddr	the first byte of virtual memory to write from.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be written at all.
+     */
+    public int writeFile(OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	FileCopier copier = new FileCopier(file, false);
+	int amount = transfer(vaddr, length, copier);
+
+	return (amount == 0 && copier.failed) ? -1 : amount;
+    }
+
+    /**
+     * Transfer data from a file straight into this process's virtual
+     * memory, without staging it in a buffer. Physically contiguous pages
+     * are read with a single call.
+     *
+     * @param	file	the file to read, at its current position.
+     * @param	vaddr	the first byte of virtual memory to read into.
+     * @param	length	the number of bytes to transfer.
+     * @return	the number of bytes successfully transferred, or -1 if the
+     *		file could not be read at all.
+     */
+    public int readFile(OpenFile file, int vaddr, int length) {
+	Lib.assertTrue(length >= 0);
+
+	FileCopier copier = new FileCopier(file, true);
+	int amount = transfer(vaddr, length, copier);
+
+	return (amount == 0 && copier.failed) ? -1 : amount;
+    }
+
+    /**
+     * Copy data between virtual memory and somewhere else. The page table is
+     * consulted once per page, and pages that are also contiguous in
+     * physical memory are handed to the copier as a single run. Stops at the
+     * first page that <tt>translatePage()</tt> refuses, or when the copier
+     * copies less than it was asked to.
+     *
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	copier	the other end of the transfer.
+     * @return	the number of bytes successfully transferred.
+     */
+    private int transfer(int vaddr, int length, Copier copier) {
+	boolean writing = copier.toMemory;
 	byte[] memory = Machine.processor().getMemory();
-	
-	// for now, just assume that virtual addresses equal physical addresses
-	if (vaddr < 0 || vaddr >= memory.length)
-	    return 0;
+	int amount = 0;
+
+	// the run of physically contiguous bytes not yet copied
+	int runAddr = 0, runStart = 0, runLength = 0;
+
+	while (amount < length) {
+	    int addr = vaddr + amount;
+	    if (addr < 0)
+		break;
+
+	    int vpn = Processor.pageFromAddress(addr);
+	    if (vpn >= pageTable.length)
+		break;
+
+	    // bringing a page in could evict the pages of the run
+	    TranslationEntry entry = pageTable[vpn];
+	    if (!entry.valid || (writing && entry.readOnly)) {
+		int copied = copier.copy(memory, runAddr, runStart, runLength);
+		if (copied < runLength)
+		    return runStart + copied;
+
+		runStart = amount;
+		runLength = 0;
+	    }
+
+	    entry = translatePage(vpn, writing);
+	    if (entry == null)
+		break;
+
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
+
+	    int pageOffset = Processor.offsetFromAddress(addr);
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int n = Math.min(length-amount, pageSize-pageOffset);
+
+	    if (runLength > 0 && paddr == runAddr + runLength) {
+		runLength += n;
+	    }
+	    else {
+		int copied = copier.copy(memory, runAddr, runStart, runLength);
+		if (copied < runLength)
+		    return runStart + copied;
+
+		runAddr = paddr;
+		runStart = amount;
+		runLength = n;
+	    }
+
+	    amount += n;
+	}
+
+	return runStart + copier.copy(memory, runAddr, runStart, runLength);
+    }
+
+    /**
+     * The other end of a transfer to or from virtual memory.
+     */
+    private static abstract class Copier {
+	Copier(boolean toMemory) {
+	    this.toMemory = toMemory;
+	}
+
+	/**
+	 * Copy a run of physical memory.
+	 *
+	 * @param	memory	main memory.
+	 * @param	paddr	the first byte of the run.
+	 * @param	done	the number of bytes of the transfer before the
+	 *			run.
+	 * @param	length	the length of the run.
+	 * @return	the number of bytes copied.
+	 */
+	abstract int copy(byte[] memory, int paddr, int done, int length);
+
+	/** Whether the transfer writes virtual memory. */
+	final boolean toMemory;
+    }
+
+    private static class ArrayCopier extends Copier {
+	ArrayCopier(byte[] data, int offset, boolean toMemory) {
+	    super(toMemory);
+
+	    this.data = data;
+	    this.offset = offset;
+	}
 
-	int amount = Math.min(length, memory.length-vaddr);
-	System.arraycopy(data, offset, memory, vaddr, amount);
+	int copy(byte[] memory, int paddr, int done, int length) {
+	    if (toMemory)
+		System.arraycopy(data, offset+done, memory, paddr, length);
+	    else
+		System.arraycopy(memory, paddr, data, offset+done, length);
 
-	return amount;
+	    return length;
+	}
+
+	private byte[] data;
+	private int offset;
+    }
+
+    private class FileCopier extends Copier {
+	FileCopier(OpenFile file, boolean toMemory) {
+	    super(toMemory);
+
+	    this.file = file;
+	}
+
+	int copy(byte[] memory, int paddr, int done, int length) {
+	    if (length == 0)
+		return 0;
+
+	    beginFileTransfer(paddr, length);
+
+	    int amount;
+	    if (toMemory)
+		amount = file.read(memory, paddr, length);
+	    else
+		amount = file.write(memory, paddr, length);
+
+	    endFileTransfer(paddr, length);
+
+	    if (amount < 0) {
+		failed = true;
+		return 0;
+	    }
+
+	    return amount;
+	}
+
+	private OpenFile file;
+	/** Set if the file returned an error. */
+	boolean failed = false;
+    }
+
+    /**
+     * Called by <tt>readFile()</tt> and <tt>writeFile()</tt> before a run of
+     * physical memory is handed to the file, which may block for a long
+     * time. A subclass can keep the pages of the run resident and release
+     * its locks here.
+     *
+     * @param	paddr	the first byte of the run.
+     * @param	length	the length of the run.
+     */
+    protected void beginFileTransfer(int paddr, int length) {
+    }
+
+    /**
+     * Called by <tt>readFile()</tt> and <tt>writeFile()</tt> once the file
+     * is done with a run passed to <tt>beginFileTransfer()</tt>.
+     *
+     * @param	paddr	the first byte of the run.
+     * @param	length	the length of the run.
+     */
+    protected void endFileTransfer(int paddr, int length) {
+    }
+
+    /**
+     * Return the page table entry to use when copying to or from a virtual
+     * page in <tt>readVirtualMemory()</tt> or <tt>writeVirtualMemory()</tt>.
+     * A subclass may bring the page into memory first.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	writing	<tt>true</tt> if the page will be written.
+     * @return	the page table entry, or <tt>null</tt> if the page cannot be
+     *		accessed.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	TranslationEntry entry = pageTable[vpn];
+	if (!entry.valid || (writing && entry.readOnly))
+	    return null;
+
+	if (entry.ppn < 0 || entry.ppn >= Machine.processor().getNumPhysPages())
+	    return null;
+
+	return entry;
     }
 
     /**
      * Load the executable with the specified name into this process, and
-     * prepare to pass it the specified arguments. Opens the executable, reads
-     * its header information, and copies sections and arguments into this
-     * process's virtual memory.
+     * prepare to pass it the specified arguments. Gets the parsed executable
+     * from <tt>UserKernel.coffCache</tt>, and copies sections and arguments
+     * into this process's virtual memory.
      *
      * @param	name	the name of the file containing the executable.
      * @param	args	the arguments to pass to the executable.
@@ -199,17 +435,8 @@ public class UserProcess {
     private boolean load(String name, String[] args) {
 	Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 	
-	OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-	if (executable == null) {
-	    Lib.debug(dbgProcess, "\topen failed");
-	    return false;
-	}
-
-	try {
-	    coff = new Coff(executable);
-	}
-	catch (EOFException e) {
-	    executable.close();
+	coff = UserKernel.coffCache.open(name);
+	if (coff == null) {
 	    Lib.debug(dbgProcess, "\tcoff load failed");
 	    return false;
 	}
@@ -219,7 +446,7 @@ public class UserProcess {
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
 	    if (section.getFirstVPN() != numPages) {
-		coff.close();
+		UserKernel.coffCache.release(coff);
 		Lib.debug(dbgProcess, "\tfragmented executable");
 		return false;
 	    }
@@ -235,7 +462,7 @@ public class UserProcess {
 	    argsSize += 4 + argv[i].length + 1;
 	}
 	if (argsSize > pageSize) {
-	    coff.close();
+	    UserKernel.coffCache.release(coff);
 	    Lib.debug(dbgProcess, "\targuments too long");
 	    return false;
 	}
@@ -275,41 +502,117 @@ public class UserProcess {
     }
 
     /**
-     * Allocates memory for this process, and loads the COFF sections into
-     * memory. If this returns successfully, the process will definitely be
-     * run (this is the last step in process initialization that can fail).
+     * Allocates memory for this process, and prepares to load the COFF
+     * sections into memory. If this returns successfully, the process will
+     * definitely be run (this is the last step in process initialization
+     * that can fail). The sections themselves are read by
+     * <tt>loadPages()</tt>.
      *
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > Machine.processor().getNumPhysPages()) {
-	    coff.close();
+	int[] ppns = UserKernel.allocatePages(numPages);
+	if (ppns == null) {
+	    UserKernel.coffCache.release(coff);
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
 	}
 
-	// load sections
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, ppns[vpn],
+						  true, false, false, false);
+
 	for (int s=0; s<coff.getNumSections(); s++) {
 	    CoffSection section = coff.getSection(s);
-	    
-	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
-		      + " section (" + section.getLength() + " pages)");
 
 	    for (int i=0; i<section.getLength(); i++) {
 		int vpn = section.getFirstVPN()+i;
 
-		// for now, just assume virtual addresses=physical addresses
-		section.loadPage(i, vpn);
+		pageTable[vpn].readOnly = section.isReadOnly();
 	    }
 	}
+
+	pagesLoaded = false;
 	
 	return true;
     }
 
+    /**
+     * Load the COFF sections into the pages allocated by
+     * <tt>loadSections()</tt>. Called by this process's own thread before
+     * it starts running, so that <tt>exec()</tt> returns to the parent
+     * without waiting for the reads.
+     *
+     * <p>
+     * The pages are divided among <tt>UserProcess.loaderThreads</tt>
+     * threads. Every read waits for the file system, and the threads wait
+     * at the same time, so loading takes about as long as the longest share.
+     */
+    protected void loadPages() {
+	if (pagesLoaded)
+	    return;
+	pagesLoaded = true;
+
+	final CoffSection[] sections = new CoffSection[numPages];
+	final int[] spns = new int[numPages];
+	int numLoads = 0;
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    
+	    Lib.debug(dbgProcess, "\tinitializing " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		sections[numLoads] = section;
+		spns[numLoads] = i;
+		numLoads++;
+	    }
+	}
+
+	final int total = numLoads;
+	final int numThreads =
+	    Math.min(total, Config.getInteger("UserProcess.loaderThreads", 8));
+
+	if (numThreads <= 1) {
+	    for (int i=0; i<total; i++)
+		loadPage(sections[i], spns[i]);
+	    return;
+	}
+
+	final Semaphore done = new Semaphore(0);
+
+	for (int t=0; t<numThreads; t++) {
+	    final int first = t;
+
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int i=first; i<total; i+=numThreads)
+			    loadPage(sections[i], spns[i]);
+			done.V();
+		    }
+		}).setName("loader " + processID + "." + t).fork();
+	}
+
+	for (int t=0; t<numThreads; t++)
+	    done.P();
+    }
+
+    private void loadPage(CoffSection section, int spn) {
+	int vpn = section.getFirstVPN() + spn;
+
+	section.loadPage(spn, pageTable[vpn].ppn);
+    }
+
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+	for (int vpn=0; vpn<numPages; vpn++)
+	    UserKernel.freePage(pageTable[vpn].ppn);
+
+	UserKernel.coffCache.release(coff);
     }    
 
     /**
@@ -322,6 +625,14 @@ public class UserProcess {
     public void initRegisters() {
 	Processor processor = Machine.processor();
 
+	// a forked process resumes where its parent was
+	if (forkRegisters != null) {
+	    for (int i=0; i<Processor.numUserRegisters; i++)
+		processor.writeRegister(i, forkRegisters[i]);
+	    forkRegisters = null;
+	    return;
+	}
+
 	// by default, everything's 0
 	for (int i=0; i<processor.numUserRegisters; i++)
 	    processor.writeRegister(i, 0);
@@ -339,6 +650,8 @@ public class UserProcess {
      * Handle the halt() system call. 
      */
     private int handleHalt() {
+	if (this != rootProcess)
+	    return 0;
 
 	Machine.halt();
 	
@@ -346,6 +659,267 @@ public class UserProcess {
 	return 0;
     }
 
+    /**
+     * Handle the exit() system call.
+     */
+    private int handleExit(int status) {
+	exit(status, true);
+
+	Lib.assertNotReached();
+	return 0;
+    }
+
+    /**
+     * Terminate this process, closing its files and releasing its memory,
+     * and record how it exited for its parent. The last process to exit
+     * terminates the kernel. Never returns.
+     *
+     * @param	status	the exit status.
+     * @param	normal	<tt>false</tt> if the process is being killed because
+     *			of an unhandled exception.
+     */
+    private void exit(int status, boolean normal) {
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    if (openFiles[fd] != null) {
+		UserKernel.openFiles.close(openFiles[fd]);
+		openFiles[fd] = null;
+	    }
+	}
+
+	unloadSections();
+
+	processLock.acquire();
+
+	exitStatus = status;
+	exitedNormally = normal;
+
+	children.clear();
+
+	boolean last = (--numRunning == 0);
+
+	processLock.release();
+
+	exited.V();
+
+	if (last)
+	    Kernel.kernel.terminate();
+
+	KThread.finish();
+    }
+
+    /**
+     * Handle the exec() system call. No more arguments are read than could
+     * fit in the child's argument page.
+     */
+    private int handleExec(int nameVaddr, int argc, int argvVaddr) {
+	String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+	if (name == null || !name.endsWith(".coff") || argc < 0
+	    || argc > maxArgs)
+	    return -1;
+
+	String[] args = new String[argc];
+	byte[] pointer = new byte[4];
+	for (int i=0; i<argc; i++) {
+	    if (readVirtualMemory(argvVaddr + i*4, pointer) != 4)
+		return -1;
+
+	    args[i] = readVirtualMemoryString(Lib.bytesToInt(pointer, 0),
+					      maxStringLength);
+	    if (args[i] == null)
+		return -1;
+	}
+
+	UserProcess child = newUserProcess();
+	addChild(child);
+
+	if (!child.execute(name, args)) {
+	    processLock.acquire();
+	    children.remove(child.processID);
+	    processLock.release();
+	    return -1;
+	}
+
+	return child.processID;
+    }
+
+    private void addChild(UserProcess child) {
+	processLock.acquire();
+
+	children.put(child.processID, child);
+
+	processLock.release();
+    }
+
+    /**
+     * Handle the join() system call.
+     */
+    private int handleJoin(int processID, int statusVaddr) {
+	processLock.acquire();
+	UserProcess child = children.remove(processID);
+	processLock.release();
+
+	if (child == null)
+	    return -1;
+
+	child.exited.P();
+
+	if (!child.exitedNormally)
+	    return 0;
+
+	writeVirtualMemory(statusVaddr, Lib.bytesFromInt(child.exitStatus));
+	return 1;
+    }
+
+    /**
+     * Handle the creat() and open() system calls.
+     */
+    private int handleOpen(int nameVaddr, boolean create) {
+	String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+	if (name == null)
+	    return -1;
+
+	int fd;
+	for (fd=0; fd<maxOpenFiles; fd++) {
+	    if (openFiles[fd] == null)
+		break;
+	}
+	if (fd == maxOpenFiles)
+	    return -1;
+
+	OpenFile file = UserKernel.openFiles.open(name, create);
+	if (file == null)
+	    return -1;
+
+	openFiles[fd] = file;
+	return fd;
+    }
+
+    /**
+     * Handle the read() system call. The data goes straight from the file
+     * into this process's memory.
+     */
+    private int handleRead(int fd, int vaddr, int size) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || !isValidBuffer(vaddr, size))
+	    return -1;
+
+	return readFile(file, vaddr, size);
+    }
+
+    /**
+     * Handle the write() system call. The data goes straight from this
+     * process's memory to the file.
+     */
+    private int handleWrite(int fd, int vaddr, int size) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null || !isValidBuffer(vaddr, size))
+	    return -1;
+
+	// the file may be an executable
+	if (file.getFileSystem() != null)
+	    UserKernel.coffCache.invalidate(file.getName());
+
+	int amount = writeFile(file, vaddr, size);
+
+	// a short write means the disk is full or the buffer is bad
+	return (amount < size) ? -1 : amount;
+    }
+
+    /**
+     * Handle the close() system call.
+     */
+    private int handleClose(int fd) {
+	OpenFile file = getOpenFile(fd);
+	if (file == null)
+	    return -1;
+
+	openFiles[fd] = null;
+	UserKernel.openFiles.close(file);
+	return 0;
+    }
+
+    /**
+     * Handle the unlink() system call.
+     */
+    private int handleUnlink(int nameVaddr) {
+	String name = readVirtualMemoryString(nameVaddr, maxStringLength);
+	if (name == null)
+	    return -1;
+
+	return UserKernel.openFiles.unlink(name) ? 0 : -1;
+    }
+
+    /**
+     * Return the file open under a file descriptor.
+     *
+     * @param	fd	the file descriptor.
+     * @return	the open file, or <tt>null</tt> if <i>fd</i> is not open.
+     */
+    protected OpenFile getOpenFile(int fd) {
+	if (fd < 0 || fd >= maxOpenFiles)
+	    return null;
+
+	return openFiles[fd];
+    }
+
+    /**
+     * Test whether a user buffer lies within this process's address space.
+     *
+     * @param	vaddr	the first byte of the buffer.
+     * @param	size	the size of the buffer.
+     * @return	<tt>true</tt> if the buffer is valid.
+     */
+    private boolean isValidBuffer(int vaddr, int size) {
+	return vaddr >= 0 && size >= 0
+	    && (long) vaddr + size <= (long) numPages*pageSize;
+    }
+
+    /**
+     * Handle the fork() system call. The child starts with the parent's
+     * registers, returning 0 from the syscall.
+     */
+    private int handleFork() {
+	UserProcess child = duplicate();
+	if (child == null)
+	    return -1;
+
+	Processor processor = Machine.processor();
+
+	child.forkRegisters = new int[Processor.numUserRegisters];
+	for (int i=0; i<Processor.numUserRegisters; i++)
+	    child.forkRegisters[i] = processor.readRegister(i);
+
+	int nextPC = processor.readRegister(Processor.regNextPC);
+	child.forkRegisters[Processor.regV0] = 0;
+	child.forkRegisters[Processor.regPC] = nextPC;
+	child.forkRegisters[Processor.regNextPC] = nextPC+4;
+
+	// the child shares the parent's open files, and their positions
+	for (int fd=0; fd<maxOpenFiles; fd++) {
+	    child.openFiles[fd] = openFiles[fd];
+	    if (openFiles[fd] != null)
+		UserKernel.openFiles.share(openFiles[fd]);
+	}
+
+	addChild(child);
+	child.started();
+
+	new UThread(child).setName("fork " + child.processID).fork();
+
+	return child.processID;
+    }
+
+    /**
+     * Create a process with a copy of this process's address space, for
+     * <tt>fork()</tt>. This class cannot copy address spaces, so it always
+     * fails; a subclass with virtual memory can share pages copy-on-write.
+     *
+     * @return	the new process, or <tt>null</tt> if it could not be created.
+     */
+    protected UserProcess duplicate() {
+	return null;
+    }
+
 
     private static final int
         syscallHalt = 0,
@@ -357,7 +931,8 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallFork = 13;
 
     /**
      * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -378,7 +953,12 @@ public class UserProcess {
      *								</tt></td></tr>
      * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
      * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+     * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
      * </table>
+     *
+     * <p>
+     * Any other syscall number kills the process, as an unexpected exception
+     * does.
      * 
      * @param	syscall	the syscall number.
      * @param	a0	the first syscall argument.
@@ -391,11 +971,31 @@ public class UserProcess {
 	switch (syscall) {
 	case syscallHalt:
 	    return handleHalt();
-
+	case syscallExit:
+	    return handleExit(a0);
+	case syscallExec:
+	    return handleExec(a0, a1, a2);
+	case syscallJoin:
+	    return handleJoin(a0, a1);
+	case syscallCreate:
+	    return handleOpen(a0, true);
+	case syscallOpen:
+	    return handleOpen(a0, false);
+	case syscallRead:
+	    return handleRead(a0, a1, a2);
+	case syscallWrite:
+	    return handleWrite(a0, a1, a2);
+	case syscallClose:
+	    return handleClose(a0);
+	case syscallUnlink:
+	    return handleUnlink(a0);
+	case syscallFork:
+	    return handleFork();
 
 	default:
+	    // a bad syscall number is the program's fault, not the kernel's
 	    Lib.debug(dbgProcess, "Unknown syscall " + syscall);
-	    Lib.assertNotReached("Unknown system call!");
+	    exit(-1, false);
 	}
 	return 0;
     }
@@ -426,7 +1026,7 @@ public class UserProcess {
 	default:
 	    Lib.debug(dbgProcess, "Unexpected exception: " +
 		      Processor.exceptionNames[cause]);
-	    Lib.assertNotReached("Unexpected exception");
+	    exit(-1, false);
 	}
     }
 
@@ -438,11 +1038,46 @@ public class UserProcess {
     /** The number of contiguous pages occupied by the program. */
     protected int numPages;
 
+    /** Whether <tt>loadPages()</tt> has loaded the sections. */
+    private boolean pagesLoaded = true;
+
     /** The number of pages in the program's stack. */
     protected final int stackPages = 8;
     
     private int initialPC, initialSP;
     private int argc, argv;
+
+    /** The maximum number of files a process can have open. */
+    protected static final int maxOpenFiles = 16;
+    /** The files open in this process, indexed by file descriptor. */
+    protected OpenFile[] openFiles = new OpenFile[maxOpenFiles];
+
+    /** This process's ID. */
+    protected int processID;
+    /** The registers a forked process starts with, until it first runs. */
+    private int[] forkRegisters = null;
+
+    /** The children this process has not joined yet. */
+    private HashMap<Integer, UserProcess> children =
+	new HashMap<Integer, UserProcess>();
+    /** Released when this process exits. */
+    private Semaphore exited = new Semaphore(0);
+    private int exitStatus;
+    private boolean exitedNormally;
+
+    /** Protects the process hierarchy and <tt>numRunning</tt>. */
+    private static Lock processLock = new Lock();
+    private static UserProcess rootProcess = null;
+    private static int numRunning = 0;
+    private static int nextProcessID = 0;
+
+    /** The maximum length of a string argument, without its null byte. */
+    private static final int maxStringLength = 256;
+    /**
+     * The maximum number of arguments to exec(): each takes at least a
+     * pointer and a null byte of the argument page.
+     */
+    private static final int maxArgs = Processor.pageSize / 5;
 	
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
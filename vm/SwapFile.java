@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.LinkedList;
+
+/**
+ * A swap file on <tt>ThreadedKernel.fileSystem</tt>, divided into page-sized
+ * slots. Pages are copied directly between a slot and a physical page. A
+ * slot may be shared by processes forked from one another, so each slot
+ * has a reference count. A slot that is being written is neither read nor
+ * reused until the write is done, since the file is accessed without
+ * <tt>VMKernel.memoryLock</tt> held.
+ */
+class SwapFile {
+    /**
+     * Create an empty swap file with the specified name, replacing any file
+     * of that name.
+     *
+     * @param	name	the name of the swap file.
+     */
+    SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to open swap file " + name);
+    }
+
+    /**
+     * Allocate a slot with a single reference, growing the file if every
+     * slot is in use.
+     *
+     * @return	the slot number.
+     */
+    int allocate() {
+	int slot;
+	if (!freeSlots.isEmpty()) {
+	    slot = freeSlots.removeFirst();
+	}
+	else {
+	    slot = numSlots++;
+	    if (slot == refCounts.length) {
+		int[] newRefCounts = new int[refCounts.length*2];
+		System.arraycopy(refCounts, 0, newRefCounts, 0,
+				 refCounts.length);
+		refCounts = newRefCounts;
+
+		boolean[] newWriting = new boolean[writing.length*2];
+		System.arraycopy(writing, 0, newWriting, 0, writing.length);
+		writing = newWriting;
+	    }
+	}
+
+	refCounts[slot] = 1;
+	return slot;
+    }
+
+    /**
+     * Add a reference to a slot.
+     *
+     * @param	slot	the slot number.
+     */
+    void share(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && refCounts[slot] > 0);
+
+	refCounts[slot]++;
+    }
+
+    /**
+     * Drop a reference to a slot, so that it can be reused once nobody
+     * refers to it.
+     *
+     * @param	slot	the slot number.
+     */
+    void free(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && refCounts[slot] > 0);
+
+	// a slot still being written is freed when the write is done
+	if (--refCounts[slot] == 0 && !writing[slot])
+	    freeSlots.add(slot);
+    }
+
+    /**
+     * Mark a slot as being written.
+     *
+     * @param	slot	the slot number.
+     */
+    void beginWrite(int slot) {
+	Lib.assertTrue(refCounts[slot] > 0 && !writing[slot]);
+
+	writing[slot] = true;
+    }
+
+    /**
+     * Mark a slot passed to <tt>beginWrite()</tt> as written, freeing it if
+     * nobody refers to it any more.
+     *
+     * @param	slot	the slot number.
+     */
+    void endWrite(int slot) {
+	Lib.assertTrue(writing[slot]);
+
+	writing[slot] = false;
+	if (refCounts[slot] == 0)
+	    freeSlots.add(slot);
+    }
+
+    /**
+     * Test whether a slot is being written.
+     *
+     * @param	slot	the slot number.
+     * @return	<tt>true</tt> if the slot is between <tt>beginWrite()</tt>
+     *		and <tt>endWrite()</tt>.
+     */
+    boolean isWriting(int slot) {
+	return writing[slot];
+    }
+
+    /**
+     * Copy a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    void read(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = file.read(slot*pageSize, memory, ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+    }
+
+    /**
+     * Copy a physical page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to copy.
+     */
+    void write(int slot, int ppn) {
+	byte[] memory = Machine.processor().getMemory();
+
+	int amount = file.write(slot*pageSize, memory, ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap write failed");
+    }
+
+    /**
+     * Close and remove the swap file.
+     */
+    void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private int numSlots = 0;
+    private int[] refCounts = new int[16];
+    private boolean[] writing = new boolean[16];
+    private LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+
+    private static final int pageSize = Processor.pageSize;
+}
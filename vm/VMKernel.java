@@ -5,8 +5,44 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is described by a global inverted page table, the core
+ * map, with one entry per physical page naming the virtual page that
+ * occupies it and the processes that map it. When no page is free, a victim is chosen with the clock
+ * algorithm, using the <tt>used</tt> bits of the page table entries, and is
+ * written to the swap file if it is dirty. The core map, the swap file and
+ * every process's page table are protected by <tt>memoryLock</tt>, which is
+ * released while a page is read or written: the physical page stays pinned,
+ * and a page or swap slot in transit is waited for by anyone else who needs
+ * it.
+ *
+ * <p>
+ * Pages of read-only COFF sections are shared. They are cached by
+ * executable, section and page, so every process running the same
+ * executable maps the same physical page, and a later launch finds the pages
+ * of an earlier one still in memory unless they have been evicted since. A
+ * shared page is never dirty, so evicting it only unmaps it from each
+ * process sharing it.
+ *
+ * <p>
+ * A forked process shares the resident pages of its parent copy-on-write,
+ * so a private page may also have several owners until they write to it.
+ * When such a page is evicted dirty, its owners share the swap slot it is
+ * written to.
+ *
+ * <p>
+ * The processor only sets the <tt>used</tt> and <tt>dirty</tt> bits of its
+ * own copies of page table entries in the TLB, so those are folded back into
+ * the page tables before they are looked at. The TLB of the current
+ * processor only ever holds entries of the current process: a process
+ * flushes it whenever it gives up the processor.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -17,15 +53,28 @@ public class VMKernel extends UserKernel {
     }
 
     /**
-     * Initialize this kernel.
+     * Initialize this kernel. Creates the core map and the swap file, which
+     * is named by the <tt>VMKernel.swapFile</tt> key.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	memoryLock = new Lock();
+	frameUnpinned = new Condition(memoryLock);
+	transferDone = new Condition(memoryLock);
+
+	coreMap = new Frame[Machine.processor().getNumPhysPages()];
+	for (int ppn=0; ppn<coreMap.length; ppn++) {
+	    coreMap[ppn] = new Frame();
+	    freeFrames.add(ppn);
+	}
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
     }
 
     /**
      * Test this kernel.
-     */	
+     */
     public void selfTest() {
 	super.selfTest();
     }
@@ -36,14 +85,506 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
 	super.terminate();
     }
 
+    /**
+     * Allocate a physical page for the specified virtual page, evicting
+     * another page if none is free. The page is returned pinned, and its
+     * contents are undefined. Must be called with <tt>memoryLock</tt> held.
+     * May release the lock while waiting for a page to be unpinned, or while
+     * writing a victim to the swap file.
+     *
+     * @param	process	the process that will own the page.
+     * @param	vpn	the virtual page that will occupy the page.
+     * @return	the physical page number.
+     */
+    static int allocateFrame(VMProcess process, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn;
+	if (!freeFrames.isEmpty())
+	    ppn = freeFrames.removeFirst();
+	else
+	    ppn = evictFrame();
+
+	Frame frame = coreMap[ppn];
+	if (process != null)
+	    frame.owners.add(process);
+	frame.vpn = vpn;
+	frame.pinCount = 1;
+
+	return ppn;
+    }
+
+    /**
+     * Add a process to the owners of a physical page, which must already be
+     * mapped by another process. Must be called with <tt>memoryLock</tt>
+     * held.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that now also maps the page.
+     */
+    static void addOwner(int ppn, VMProcess process) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame = coreMap[ppn];
+	Lib.assertTrue(!frame.owners.isEmpty());
+
+	frame.owners.add(process);
+    }
+
+    /**
+     * Remove a process from the owners of a physical page. A private page
+     * is freed when its last owner goes; a shared text page stays cached
+     * for later processes. The page must not be in the TLB for that process.
+     * Must be called with <tt>memoryLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     * @param	process	the process that no longer maps the page.
+     */
+    static void removeOwner(int ppn, VMProcess process) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame = coreMap[ppn];
+	Lib.assertTrue(frame.owners.remove(process));
+
+	if (frame.owners.isEmpty() && frame.text == null)
+	    freeFrame(ppn);
+    }
+
+    /**
+     * Test whether a physical page is mapped by more than one process.
+     * Must be called with <tt>memoryLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    static boolean isShared(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	return coreMap[ppn].owners.size() > 1;
+    }
+
+    private static void freeFrame(int ppn) {
+	Frame frame = coreMap[ppn];
+	Lib.assertTrue(frame.owners.isEmpty() && frame.pinCount == 0);
+
+	frame.text = null;
+	freeFrames.add(ppn);
+    }
+
+    /**
+     * Return the shared text pages of an executable, creating them if the
+     * executable has not been seen before. Processes running the same
+     * executable share the <tt>Coff</tt> from <tt>UserKernel.coffCache</tt>,
+     * so a different <tt>Coff</tt> for a file name means the file has been
+     * replaced, and new text pages are created for it.
+     *
+     * @param	coff	the executable.
+     * @return	the shared text pages of the executable, or <tt>null</tt> if
+     *		it cannot be identified.
+     */
+    static TextImage openText(Coff coff) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	String name = coff.getName();
+	if (name == null)
+	    return null;
+
+	TextImage image = textImages.get(name);
+	if (image == null || image.coff != coff) {
+	    image = new TextImage(coff);
+	    textImages.put(name, image);
+	}
+
+	return image;
+    }
+
+    /**
+     * Map a page of a read-only section, loading it only if it is not
+     * already cached. The page is returned pinned. Must be called with
+     * <tt>memoryLock</tt> held, which is released while the page is loaded,
+     * or while another process loads it.
+     *
+     * @param	process	the process that will map the page.
+     * @param	image	the shared text pages of the process's executable.
+     * @param	section	the number of the section.
+     * @param	spn	the page number within the section.
+     * @param	vpn	the virtual page of the page.
+     * @return	the physical page number.
+     */
+    static int mapText(VMProcess process, TextImage image, int section,
+		       int spn, int vpn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	int ppn = image.frames[section][spn];
+	if (ppn < 0) {
+	    ppn = allocateFrame(null, vpn);
+
+	    // someone else may have loaded it while we waited for a page
+	    if (image.frames[section][spn] >= 0) {
+		unpinFrame(ppn);
+		freeFrame(ppn);
+		return mapText(process, image, section, spn, vpn);
+	    }
+
+	    Lib.debug(dbgVM, "page " + vpn + " in from executable, shared");
+
+	    Frame frame = coreMap[ppn];
+	    frame.text = image;
+	    frame.section = section;
+	    frame.spn = spn;
+	    frame.loading = true;
+	    image.frames[section][spn] = ppn;
+
+	    memoryLock.release();
+	    process.getSection(section).loadPage(spn, ppn);
+	    memoryLock.acquire();
+
+	    frame.loading = false;
+	    transferDone.wakeAll();
+	}
+	else {
+	    pinFrame(ppn);
+
+	    while (coreMap[ppn].loading)
+		transferDone.sleep();
+	}
+
+	coreMap[ppn].owners.add(process);
+
+	return ppn;
+    }
+
+    /**
+     * Copy a swap slot into a physical page, waiting first for the slot to
+     * be written if it is being evicted. Must be called with
+     * <tt>memoryLock</tt> held, which is released while the page is read.
+     * The physical page must be pinned.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    static void swapIn(int slot, int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+	Lib.assertTrue(coreMap[ppn].pinCount > 0);
+
+	while (swap.isWriting(slot))
+	    transferDone.sleep();
+
+	memoryLock.release();
+	swap.read(slot, ppn);
+	memoryLock.acquire();
+    }
+
+    /**
+     * Keep a physical page from being evicted until it is unpinned. Must be
+     * called with <tt>memoryLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void pinFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	coreMap[ppn].pinCount++;
+    }
+
+    /**
+     * Undo one call to <tt>pinFrame()</tt>. Must be called with
+     * <tt>memoryLock</tt> held.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(memoryLock.isHeldByCurrentThread());
+
+	Frame frame = coreMap[ppn];
+	Lib.assertTrue(frame.pinCount > 0);
+
+	if (--frame.pinCount == 0)
+	    frameUnpinned.wake();
+    }
+
+    /**
+     * Choose a victim with the clock algorithm, unmap it from its owners,
+     * and write it to the swap file if it is dirty. The owners are given the
+     * slot before the lock is released for the write, so a fault on the page
+     * waits for the write instead of finding stale data.
+     *
+     * @return	the physical page number of the victim.
+     */
+    private static int evictFrame() {
+	while (true) {
+	    // two sweeps clear every used bit, so only pins can stop us
+	    for (int n=0; n<2*coreMap.length; n++) {
+		int ppn = clockHand;
+		clockHand = (clockHand+1) % coreMap.length;
+
+		Frame frame = coreMap[ppn];
+		if (frame.pinCount > 0)
+		    continue;
+
+		updateTLB(ppn, true);
+		if (frame.testAndClearUsed())
+		    continue;
+
+		Lib.debug(dbgVM, "evicting page " + frame.vpn + " from ppn "
+			  + ppn);
+
+		// pin the victim, so nobody else picks it while we write it
+		frame.pinCount = 1;
+		updateTLB(ppn, false);
+
+		boolean dirty = false;
+		for (VMProcess owner : frame.owners) {
+		    TranslationEntry entry = owner.getEntry(frame.vpn);
+		    entry.valid = false;
+		    dirty |= entry.dirty;
+		}
+
+		if (frame.text != null) {
+		    frame.text.frames[frame.section][frame.spn] = -1;
+		    frame.text = null;
+		}
+		// a clean page can be reloaded from wherever it came from
+		else if (dirty) {
+		    Lib.debug(dbgVM, "page " + frame.vpn + " out to swap");
+
+		    int slot = swap.allocate();
+		    for (VMProcess owner : frame.owners) {
+			if (owner != frame.owners.getFirst())
+			    swap.share(slot);
+			owner.setSwapSlot(frame.vpn, slot);
+		    }
+
+		    swap.beginWrite(slot);
+		    memoryLock.release();
+		    swap.write(slot, ppn);
+		    memoryLock.acquire();
+		    swap.endWrite(slot);
+
+		    transferDone.wakeAll();
+		}
+
+		frame.owners.clear();
+		frame.pinCount = 0;
+
+		return ppn;
+	    }
+
+	    frameUnpinned.sleep();
+
+	    // a process may have exited while we waited
+	    if (!freeFrames.isEmpty())
+		return freeFrames.removeFirst();
+	}
+    }
+
+    /**
+     * Fold the <tt>used</tt> and <tt>dirty</tt> bits of the current
+     * processor's TLB entries back into the page tables.
+     */
+    static void syncTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid)
+		syncEntry(tlbEntry);
+	}
+    }
+
+    /**
+     * Fold the <tt>used</tt> and <tt>dirty</tt> bits of the current
+     * processor's TLB into the page tables, and invalidate every TLB entry.
+     */
+    static void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid) {
+		syncEntry(tlbEntry);
+		tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    /**
+     * Load a page table entry into the current processor's TLB, in the set
+     * that holds its virtual page. An entry already there for the same page
+     * is replaced; otherwise an invalid way is used if there is one, and the
+     * ways are replaced in turn if not, passing over the page of the faulting
+     * instruction.
+     *
+     * @param	entry	the page table entry, which must be valid.
+     */
+    static void writeTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+
+	int ways = processor.getTLBAssociativity();
+	int first = processor.getTLBSet(entry.vpn) * ways;
+
+	// replace a stale entry for the same page, or else an invalid one
+	int victim = -1;
+	for (int i=first; i<first+ways; i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.vpn == entry.vpn) {
+		syncEntry(tlbEntry);
+		victim = i;
+		break;
+	    }
+	    if (!tlbEntry.valid && victim < 0)
+		victim = i;
+	}
+
+	if (victim < 0) {
+	    // keep the page of the faulting instruction, which it still needs
+	    int pcVPN =
+		Processor.pageFromAddress(processor.readRegister(Processor.regPC));
+
+	    victim = first + (tlbHand++ % ways);
+	    if (processor.readTLBEntry(victim).vpn == pcVPN)
+		victim = first + (tlbHand++ % ways);
+	    syncEntry(processor.readTLBEntry(victim));
+	}
+
+	processor.writeTLBEntry(victim, entry);
+    }
+
+    /**
+     * Remove a physical page from the current processor's TLB, folding the
+     * bits of its entries back into the page table first.
+     *
+     * @param	ppn	the physical page number.
+     */
+    static void invalidateTLB(int ppn) {
+	updateTLB(ppn, false);
+    }
+
+    /**
+     * Find the current processor's TLB entries for a physical page, fold
+     * their bits back into the page table, and then either clear their
+     * <tt>used</tt> bits or invalidate them.
+     *
+     * @param	ppn	the physical page number.
+     * @param	keep	<tt>true</tt> to clear the <tt>used</tt> bits,
+     *			<tt>false</tt> to invalidate the entries.
+     */
+    private static void updateTLB(int ppn, boolean keep) {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry tlbEntry = processor.readTLBEntry(i);
+	    if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+		syncEntry(tlbEntry);
+		if (keep)
+		    tlbEntry.used = false;
+		else
+		    tlbEntry.valid = false;
+		processor.writeTLBEntry(i, tlbEntry);
+	    }
+	}
+    }
+
+    private static void syncEntry(TranslationEntry tlbEntry) {
+	Frame frame = coreMap[tlbEntry.ppn];
+
+	if (tlbEntry.used)
+	    frame.used = true;
+
+	// only a writable page can have been written, and it has one owner
+	if (tlbEntry.dirty && !tlbEntry.readOnly) {
+	    Lib.assertTrue(frame.owners.size() == 1);
+	    frame.owners.getFirst().getEntry(frame.vpn).dirty = true;
+	}
+    }
+
+    /**
+     * An entry in the core map.
+     */
+    private static class Frame {
+	/**
+	 * Test whether this page has been used since the clock last passed
+	 * it, and clear its used bits.
+	 *
+	 * @return	<tt>true</tt> if this page has been used.
+	 */
+	boolean testAndClearUsed() {
+	    boolean wasUsed = used;
+	    used = false;
+
+	    for (VMProcess owner : owners) {
+		TranslationEntry entry = owner.getEntry(vpn);
+		wasUsed |= entry.used;
+		entry.used = false;
+	    }
+
+	    return wasUsed;
+	}
+
+	/** The processes mapping this page; its reference count. */
+	LinkedList<VMProcess> owners = new LinkedList<VMProcess>();
+	/** The virtual page held in this page. */
+	int vpn;
+	/** The number of outstanding pins. */
+	int pinCount = 0;
+	/** Set when this page is used through the TLB. */
+	boolean used = false;
+
+	/** The executable whose text this shared page holds, if any. */
+	TextImage text = null;
+	/** The section and page within it held in this shared page. */
+	int section, spn;
+	/** Set while this shared page is being read from the executable. */
+	boolean loading = false;
+    }
+
+    /**
+     * The cached pages of the read-only sections of an executable.
+     */
+    static class TextImage {
+	TextImage(Coff coff) {
+	    this.coff = coff;
+
+	    int numSections = coff.getNumSections();
+	    frames = new int[numSections][];
+
+	    for (int s=0; s<numSections; s++) {
+		frames[s] = new int[coff.getSection(s).getLength()];
+		Arrays.fill(frames[s], -1);
+	    }
+	}
+
+	/** The executable whose pages these are. */
+	Coff coff;
+	/** The physical page holding each section page, or -1. */
+	int[][] frames;
+    }
+
+    /** Protects the core map, the swap file and the page tables. */
+    static Lock memoryLock;
+    /** The swap file. */
+    static SwapFile swap;
+
+    private static Condition frameUnpinned;
+    private static Condition transferDone;
+    private static Frame[] coreMap;
+    private static LinkedList<Integer> freeFrames = new LinkedList<Integer>();
+    private static HashMap<String, TextImage> textImages =
+	new HashMap<String, TextImage>();
+    private static int clockHand = 0;
+    private static int tlbHand = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,23 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is loaded until it is first referenced. A COFF page is then read
+ * from the executable, and a stack or argument page is zero-filled. A page
+ * that is evicted while dirty is written to the swap file, and is read back
+ * from there from then on; a clean page is simply dropped, and reloaded from
+ * wherever it came from. Pages of read-only sections are shared with other
+ * processes running the same executable.
+ *
+ * <p>
+ * A forked child shares its parent's pages copy-on-write: both map them
+ * read-only, and the first process to write to a page gets a copy of its
+ * own.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -18,18 +33,21 @@ public class VMProcess extends UserProcess {
 
     /**
      * Save the state of this process in preparation for a context switch.
-     * Called by <tt>UThread.saveState()</tt>.
+     * Called by <tt>UThread.saveState()</tt>. Flushes the TLB, so that the
+     * next process starts with an empty one.
      */
     public void saveState() {
 	super.saveState();
+
+	VMKernel.flushTLB();
     }
 
     /**
      * Restore the state of this process after a context switch. Called by
-     * <tt>UThread.restoreState()</tt>.
+     * <tt>UThread.restoreState()</tt>. The TLB was flushed when the
+     * processor was last given up, so it is refilled on demand.
      */
     public void restoreState() {
-	super.restoreState();
     }
 
     /**
@@ -39,15 +57,438 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	pageSections = new int[numPages];
+	swapSlots = new int[numPages];
+	copyOnWrite = new boolean[numPages];
+	coffUsers = new CoffUsers();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1,
+						  false, false, false, false);
+	    pageSections[vpn] = -1;
+	    swapSlots[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tmapping " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		pageSections[vpn] = s;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	VMKernel.memoryLock.acquire();
+	text = VMKernel.openText(coff);
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Does nothing, since pages are loaded when they are first referenced.
+     */
+    protected void loadPages() {
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.memoryLock.acquire();
+
+	VMKernel.flushTLB();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		pageTable[vpn].valid = false;
+		VMKernel.removeOwner(pageTable[vpn].ppn, this);
+	    }
+
+	    if (swapSlots[vpn] >= 0) {
+		VMKernel.swap.free(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	boolean lastUser = (--coffUsers.count == 0);
+
+	VMKernel.memoryLock.release();
+
+	if (lastUser)
+	    UserKernel.coffCache.release(coff);
+    }
+
+    /**
+     * Create a child with this process's address space. Resident private
+     * pages are shared copy-on-write, pages in the swap file share their
+     * slots, and everything else is loaded on demand as usual.
+     *
+     * @return	the child process.
+     */
+    protected UserProcess duplicate() {
+	VMProcess child = (VMProcess) newUserProcess();
+
+	VMKernel.memoryLock.acquire();
+
+	// fold the dirty bits back into the page table before sharing
+	VMKernel.flushTLB();
+
+	child.coff = coff;
+	child.coffUsers = coffUsers;
+	coffUsers.count++;
+
+	child.numPages = numPages;
+	child.text = text;
+	child.pageSections = pageSections.clone();
+	child.swapSlots = swapSlots.clone();
+	child.copyOnWrite = new boolean[numPages];
+	child.pageTable = new TranslationEntry[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = pageTable[vpn];
+
+	    if (swapSlots[vpn] >= 0)
+		VMKernel.swap.share(swapSlots[vpn]);
+
+	    if (entry.valid) {
+		VMKernel.addOwner(entry.ppn, child);
+
+		if (!entry.readOnly) {
+		    entry.readOnly = true;
+		    copyOnWrite[vpn] = true;
+		    child.copyOnWrite[vpn] = true;
+		}
+	    }
+	    else if (copyOnWrite[vpn]) {
+		child.copyOnWrite[vpn] = true;
+	    }
+
+	    child.pageTable[vpn] = new TranslationEntry(entry);
+	    child.pageTable[vpn].used = false;
+	}
+
+	VMKernel.memoryLock.release();
+
+	return child;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory to the specified
+     * array, paging in pages as needed.
+     */
+    public int readVirtualMemory(int vaddr, byte[] data, int offset,
+				 int length) {
+	VMKernel.memoryLock.acquire();
+	int amount = super.readVirtualMemory(vaddr, data, offset, length);
+	VMKernel.memoryLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from the specified array to this process's virtual
+     * memory, paging in pages as needed.
+     */
+    public int writeVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length) {
+	VMKernel.memoryLock.acquire();
+	int amount = super.writeVirtualMemory(vaddr, data, offset, length);
+	VMKernel.memoryLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from this process's virtual memory straight to a file.
+     * Pages stay resident until the file has been written.
+     */
+    public int writeFile(OpenFile file, int vaddr, int length) {
+	VMKernel.memoryLock.acquire();
+	int amount = super.writeFile(file, vaddr, length);
+	VMKernel.memoryLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Transfer data from a file straight into this process's virtual
+     * memory. Pages stay resident until the file has been read.
+     */
+    public int readFile(OpenFile file, int vaddr, int length) {
+	VMKernel.memoryLock.acquire();
+	int amount = super.readFile(file, vaddr, length);
+	VMKernel.memoryLock.release();
+
+	return amount;
+    }
+
+    /**
+     * Pin the pages of a run and release <tt>memoryLock</tt> while the file
+     * reads or writes them, so that other processes can fault in the
+     * meantime.
+     */
+    protected void beginFileTransfer(int paddr, int length) {
+	int firstPPN = paddr / pageSize;
+	int lastPPN = (paddr+length-1) / pageSize;
+
+	for (int ppn=firstPPN; ppn<=lastPPN; ppn++)
+	    VMKernel.pinFrame(ppn);
+
+	VMKernel.memoryLock.release();
+    }
+
+    /**
+     * Take <tt>memoryLock</tt> back and unpin the pages of a run.
+     */
+    protected void endFileTransfer(int paddr, int length) {
+	VMKernel.memoryLock.acquire();
+
+	int firstPPN = paddr / pageSize;
+	int lastPPN = (paddr+length-1) / pageSize;
+
+	for (int ppn=firstPPN; ppn<=lastPPN; ppn++)
+	    VMKernel.unpinFrame(ppn);
+    }
+
+    /**
+     * Page in a virtual page so that it can be copied to or from. Writing
+     * to a copy-on-write page copies it first. Called with
+     * <tt>memoryLock</tt> held.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	writing	<tt>true</tt> if the page will be written.
+     * @return	the page table entry, or <tt>null</tt> if the page is
+     *		read-only and being written.
+     */
+    protected TranslationEntry translatePage(int vpn, boolean writing) {
+	TranslationEntry entry = pageTable[vpn];
+	if (writing && entry.readOnly && !copyOnWrite[vpn])
+	    return null;
+
+	if (!entry.valid) {
+	    pageIn(vpn);
+	    VMKernel.unpinFrame(entry.ppn);
+	}
+
+	if (writing && copyOnWrite[vpn])
+	    breakCopyOnWrite(vpn);
+
+	return entry;
+    }
+
+    /**
+     * Handle a TLB miss, paging in the missing page if it is not in
+     * memory.
+     *
+     * @param	vaddr	the virtual address that missed.
+     * @return	<tt>true</tt> if the address is part of the address space.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages)
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+
+	// A resident page is mapped without the lock. Waiting for the lock
+	// would flush the TLB, so an instruction touching two pages could
+	// lose one whenever other processes are faulting too. With interrupts
+	// disabled, nothing can evict the page before it is in the TLB, and
+	// eviction flushes it from there.
+	boolean intStatus = Machine.interrupt().disable();
+	boolean resident = entry.valid;
+	if (resident)
+	    VMKernel.writeTLB(entry);
+	Machine.interrupt().restore(intStatus);
+
+	if (resident)
+	    return true;
+
+	VMKernel.memoryLock.acquire();
+
+	if (!entry.valid) {
+	    pageIn(vpn);
+	    VMKernel.unpinFrame(entry.ppn);
+	}
+
+	VMKernel.writeTLB(entry);
+
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Load a virtual page into a newly allocated physical page, or map the
+     * shared page already holding it. Must be called with
+     * <tt>memoryLock</tt> held, which is released while the page is read.
+     * The physical page is left pinned.
+     *
+     * @param	vpn	the virtual page to load.
+     */
+    private void pageIn(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(!entry.valid);
+
+	int ppn;
+
+	if (isShared(vpn)) {
+	    int s = pageSections[vpn];
+	    int spn = vpn - coff.getSection(s).getFirstVPN();
+	    ppn = VMKernel.mapText(this, text, s, spn, vpn);
+	}
+	else if (swapSlots[vpn] >= 0) {
+	    ppn = VMKernel.allocateFrame(this, vpn);
+	    Lib.debug(dbgVM, "page " + vpn + " in from swap");
+	    VMKernel.swapIn(swapSlots[vpn], ppn);
+	}
+	else if (pageSections[vpn] >= 0) {
+	    ppn = VMKernel.allocateFrame(this, vpn);
+	    Lib.debug(dbgVM, "page " + vpn + " in from executable");
+	    CoffSection section = coff.getSection(pageSections[vpn]);
+
+	    VMKernel.memoryLock.release();
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	    VMKernel.memoryLock.acquire();
+	}
+	else {
+	    ppn = VMKernel.allocateFrame(this, vpn);
+	    Lib.debug(dbgVM, "page " + vpn + " zero-filled");
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	entry.ppn = ppn;
+	entry.valid = true;
+	entry.used = true;
+	entry.dirty = false;
+    }
+
+    /**
+     * Give a private copy of a copy-on-write page to this process, so that
+     * it can be written. The page must be resident. Must be called with
+     * <tt>memoryLock</tt> held.
+     *
+     * @param	vpn	the virtual page to copy.
+     */
+    private void breakCopyOnWrite(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid && copyOnWrite[vpn]);
+
+	int oldPPN = entry.ppn;
+	VMKernel.invalidateTLB(oldPPN);
+
+	if (VMKernel.isShared(oldPPN)) {
+	    // another owner still maps the page, so this one gets a copy
+	    VMKernel.pinFrame(oldPPN);
+	    int ppn = VMKernel.allocateFrame(this, vpn);
+
+	    Lib.debug(dbgVM, "page " + vpn + " copied on write");
+	    byte[] memory = Machine.processor().getMemory();
+	    System.arraycopy(memory, oldPPN*pageSize, memory, ppn*pageSize,
+			     pageSize);
+
+	    VMKernel.unpinFrame(oldPPN);
+	    VMKernel.removeOwner(oldPPN, this);
+	    VMKernel.unpinFrame(ppn);
+
+	    entry.ppn = ppn;
+	}
+	else {
+	    // the last owner just takes the page over
+	    Lib.debug(dbgVM, "page " + vpn + " taken over on write");
+	}
+
+	entry.readOnly = false;
+	copyOnWrite[vpn] = false;
+
+	// the swap copy, if any, no longer matches the page
+	entry.dirty = true;
+	setSwapSlot(vpn, -1);
+    }
+
+    /**
+     * Handle a write to a read-only page, which is allowed if the page is
+     * copy-on-write.
+     *
+     * @param	vaddr	the virtual address written.
+     * @return	<tt>true</tt> if the page can now be written.
+     */
+    private boolean handleReadOnly(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages || !copyOnWrite[vpn])
+	    return false;
+
+	TranslationEntry entry = pageTable[vpn];
+
+	VMKernel.memoryLock.acquire();
+
+	if (!entry.valid) {
+	    pageIn(vpn);
+	    VMKernel.unpinFrame(entry.ppn);
+	}
+
+	if (copyOnWrite[vpn])
+	    breakCopyOnWrite(vpn);
+
+	VMKernel.writeTLB(entry);
+
+	VMKernel.memoryLock.release();
+
+	return true;
+    }
+
+    /**
+     * Replace the swap slot holding a virtual page, releasing the old one.
+     * Called with <tt>memoryLock</tt> held.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the new slot, or -1 for none.
+     */
+    void setSwapSlot(int vpn, int slot) {
+	if (swapSlots[vpn] >= 0)
+	    VMKernel.swap.free(swapSlots[vpn]);
+
+	swapSlots[vpn] = slot;
+    }
+
+    /**
+     * Test whether a virtual page is a shared page of a read-only section.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is shared.
+     */
+    private boolean isShared(int vpn) {
+	return text != null && pageSections[vpn] >= 0
+	    && coff.getSection(pageSections[vpn]).isReadOnly();
+    }
+
+    /**
+     * Return a section of this process's executable.
+     *
+     * @param	section	the section number.
+     * @return	the section.
+     */
+    CoffSection getSection(int section) {
+	return coff.getSection(section);
+    }
+
+    /**
+     * Return the page table entry for a virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getEntry(int vpn) {
+	return pageTable[vpn];
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +502,37 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
+	case Processor.exceptionReadOnly:
+	    if (!handleReadOnly(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** The COFF section holding each virtual page, or -1. */
+    private int[] pageSections;
+    /** The shared pages of the read-only sections, if they can be shared. */
+    private VMKernel.TextImage text;
+    /** The swap slot holding each virtual page, or -1 if it has none. */
+    private int[] swapSlots;
+    /** Whether each virtual page is shared copy-on-write. */
+    private boolean[] copyOnWrite;
+    /** The processes forked from one another that share our executable. */
+    private CoffUsers coffUsers;
+
+    private static class CoffUsers {
+	int count = 1;
+    }
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';